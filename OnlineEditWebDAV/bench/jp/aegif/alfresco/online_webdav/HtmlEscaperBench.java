@@ -0,0 +1,184 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link HtmlEscaper} writes the same output as the former <tt>WebDAVHelper.encodeHTML</tt>
+ * and compares their speed on Japanese file names.
+ * <p>
+ * Run with <tt>ant bench</tt>. Exits with status 1 if the outputs differ.
+ */
+public class HtmlEscaperBench
+{
+	private static final String[] NAMES = {
+		"",
+		"report.docx",
+		"\u8B70\u4E8B\u9332_2013\u5E744\u6708.docx",
+		"\u55B6\u696D\u90E8 \u58F2\u4E0A\u5831\u544A\uFF08\u6700\u7D42\u7248\uFF09.xlsx",
+		"\u30D7\u30ED\u30B8\u30A7\u30AF\u30C8\u8A08\u753B\u66F8 & \u898B\u7A4D\u3082\u308A <\u6848>.pptx",
+		"\u682A\u5F0F\u4F1A\u793E\u30A8\u30A4\u30B8\u30A7\u30C3\u30AF\u30B9 \u5951\u7D04\u66F8\"\u6539\u8A02\".doc",
+		"price \u20AC100 \u00ABquoted\u00BB\u00A0nbsp",
+		"\u0080\u00FF\u03E7\u03E8\u270F\u2710\u270F\u2711\u9999\uFFFF",
+		"\uD842\uDFB7\u91CE\u5BB6.txt",
+	};
+
+	public static void main(String[] args)
+	{
+		int mismatches = 0;
+		for (String name : NAMES)
+		{
+			mismatches += check(name);
+		}
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++)
+		{
+			mismatches += check(randomString(random));
+		}
+		if (mismatches > 0)
+		{
+			System.out.println(mismatches + " mismatches");
+			System.exit(1);
+		}
+		System.out.println("HtmlEscaper output identical to encodeHTML on " + (NAMES.length + 100000) + " strings");
+
+		String[] japanese = new String[] { NAMES[2], NAMES[3], NAMES[4], NAMES[5] };
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		for (int round = 0; round < 3; round++)
+		{
+			long legacy = timeLegacy(japanese, iterations);
+			long escaper = timeEscaper(japanese, iterations);
+			System.out.println("round " + round + ": encodeHTML " + legacy / iterations + " ns/op, HtmlEscaper "
+					+ escaper / iterations + " ns/op");
+		}
+	}
+
+	private static int check(String s)
+	{
+		String expected = legacyEncodeHTML(s);
+		String actual = HtmlEscaper.escape(s);
+		if (!expected.equals(actual))
+		{
+			System.out.println("mismatch for \"" + s + "\": expected \"" + expected + "\", got \"" + actual + "\"");
+			return 1;
+		}
+		return 0;
+	}
+
+	private static String randomString(Random random)
+	{
+		int len = random.nextInt(40);
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = 0; i < len; i++)
+		{
+			switch (random.nextInt(4))
+			{
+			case 0: sb.append((char) random.nextInt(128)); break;
+			case 1: sb.append((char) (0x3040 + random.nextInt(0x60))); break;
+			case 2: sb.append((char) (0x4E00 + random.nextInt(0x5200))); break;
+			default: sb.append((char) random.nextInt(0x10000)); break;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static long timeLegacy(String[] names, int iterations)
+	{
+		int length = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			length += legacyEncodeHTML(names[i & 3]).length();
+		}
+		long elapsed = System.nanoTime() - start;
+		sink(length);
+		return elapsed;
+	}
+
+	private static long timeEscaper(String[] names, int iterations)
+	{
+		int length = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			length += HtmlEscaper.escape(names[i & 3]).length();
+		}
+		long elapsed = System.nanoTime() - start;
+		sink(length);
+		return elapsed;
+	}
+
+	private static volatile int s_sink;
+
+	private static void sink(int value)
+	{
+		s_sink += value;
+	}
+
+	/**
+	 * The former <tt>WebDAVHelper.encodeHTML</tt>, kept as the reference
+	 */
+	private static String legacyEncodeHTML(String string)
+	{
+		if (string == null)
+		{
+			return "";
+		}
+
+		StringBuilder sb = null;      //create on demand
+		String enc;
+		char c;
+		for (int i = 0; i < string.length(); i++)
+		{
+			enc = null;
+			c = string.charAt(i);
+			switch (c)
+			{
+			case '"': enc = "&quot;"; break;    //"
+			case '&': enc = "&amp;"; break;     //&
+			case '<': enc = "&lt;"; break;      //<
+			case '>': enc = "&gt;"; break;      //>
+
+			//misc
+			case '\u20AC': enc = "&euro;";  break;
+			case '\u00AB': enc = "&laquo;"; break;
+			case '\u00BB': enc = "&raquo;"; break;
+			case '\u00A0': enc = "&nbsp;"; break;
+
+			default:
+				if (((int)c) >= 0x80)
+				{
+					//encode all non basic latin characters
+					enc = "&#" + ((int)c) + ";";
+				}
+				break;
+			}
+
+			if (enc != null)
+			{
+				if (sb == null)
+				{
+					String soFar = string.substring(0, i);
+					sb = new StringBuilder(i + 8);
+					sb.append(soFar);
+				}
+				sb.append(enc);
+			}
+			else
+			{
+				if (sb != null)
+				{
+					sb.append(c);
+				}
+			}
+		}
+
+		if (sb == null)
+		{
+			return string;
+		}
+		else
+		{
+			return sb.toString();
+		}
+	}
+}
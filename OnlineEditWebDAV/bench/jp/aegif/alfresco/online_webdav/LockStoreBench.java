@@ -0,0 +1,132 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.repo.webdav.LockInfoImpl;
+import org.alfresco.repo.webdav.WebDAV;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+
+/**
+ * Measures the contention of {@link ShardedLockStore} with one shard, i.e. a single lock, and with
+ * 64 shards.
+ * <p>
+ * Each thread looks up, and now and then takes or releases, the locks of a shared set of nodes, as
+ * concurrent PROPFIND, LOCK and UNLOCK requests do. {@link RepositoryLockStore} is not measured:
+ * its cost is the lock service and the repository behind it, which need a running repository, and
+ * an in-memory stand-in would only measure the stand-in.
+ * <p>
+ * Run with <tt>ant bench</tt>, or with the number of threads, the seconds per run and the number
+ * of nodes as arguments.
+ */
+public class LockStoreBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		long millis = (args.length > 1 ? Long.parseLong(args[1]) : 3L) * 1000L;
+		int nodes = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		NodeRef[] nodeRefs = new NodeRef[nodes];
+		for (int i = 0; i < nodes; i++)
+		{
+			nodeRefs[i] = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "00000000-0000-0000-0000-" + (100000000000L + i));
+		}
+
+		ShardedLockStore singleShard = new ShardedLockStore();
+		singleShard.setShardCount(1);
+		ShardedLockStore sharded = new ShardedLockStore();
+		sharded.setShardCount(64);
+
+		System.out.println(threads + " threads, " + nodes + " nodes, 90% lookups");
+		for (int round = 0; round < 2; round++)
+		{
+			report("ShardedLockStore, 1 shard", run(singleShard, nodeRefs, threads, millis), millis);
+			report("ShardedLockStore, 64 shards", run(sharded, nodeRefs, threads, millis), millis);
+		}
+	}
+
+	private static void report(String name, long operations, long millis)
+	{
+		System.out.println(name + ": " + operations * 1000L / millis + " ops/s");
+	}
+
+	private static long run(final LockStore store, final NodeRef[] nodeRefs, int threads, final long millis) throws InterruptedException
+	{
+		for (NodeRef nodeRef : nodeRefs)
+		{
+			store.lock(nodeRef, createLock());
+		}
+		final AtomicLong operations = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++)
+		{
+			final long seed = t;
+			Thread thread = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					Random random = new Random(seed);
+					LockInfo lockInfo = createLock();
+					long count = 0;
+					try
+					{
+						start.await();
+						long end = System.currentTimeMillis() + millis;
+						while ((count & 1023) != 0 || System.currentTimeMillis() < end)
+						{
+							NodeRef nodeRef = nodeRefs[random.nextInt(nodeRefs.length)];
+							int op = random.nextInt(20);
+							if (op == 0)
+							{
+								store.unlock(nodeRef);
+							}
+							else if (op == 1)
+							{
+								store.lock(nodeRef, lockInfo);
+							}
+							else
+							{
+								store.getLockInfo(nodeRef);
+							}
+							count++;
+						}
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						operations.addAndGet(count);
+						done.countDown();
+					}
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+		start.countDown();
+		done.await();
+		for (NodeRef nodeRef : nodeRefs)
+		{
+			store.unlock(nodeRef);
+		}
+		return operations.get();
+	}
+
+	private static LockInfo createLock()
+	{
+		LockInfoImpl lockInfo = new LockInfoImpl();
+		lockInfo.setExclusiveLockToken("opaquelocktoken:bench");
+		lockInfo.setScope(WebDAV.XML_EXCLUSIVE);
+		lockInfo.setDepth(WebDAV.INFINITY);
+		lockInfo.setOwner("bench");
+		lockInfo.setTimeoutSeconds(3600);
+		return lockInfo;
+	}
+}
@@ -0,0 +1,102 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares running blocking requests on a fixed pool of container-like threads with running them
+ * on {@link VirtualThreadExecutor}.
+ * <p>
+ * Each request only sleeps, standing in for the time a WebDAV method waits on the database, the
+ * content store or a slow client. The figures show how many such requests each model completes,
+ * not the cost of the WebDAV methods themselves. Virtual threads need JDK 21; on older JDKs the
+ * executor stays inactive and only the pool is measured. In the servlet the executor is also only
+ * used once <tt>web.xml</tt> declares async support, see {@link AsyncContentStreamer}.
+ * <p>
+ * Run with <tt>ant bench</tt>, or with the number of requests, the milliseconds each request
+ * blocks and the number of pool threads as arguments.
+ */
+public class VirtualThreadBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final long blockMillis = args.length > 1 ? Long.parseLong(args[1]) : 20L;
+		int poolThreads = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		System.out.println(requests + " requests blocking " + blockMillis + "ms each");
+
+		ExecutorService pool = Executors.newFixedThreadPool(poolThreads);
+		VirtualThreadExecutor virtualThreads = new VirtualThreadExecutor();
+		virtualThreads.setEnabled(true);
+		virtualThreads.init();
+		try
+		{
+			for (int round = 0; round < 2; round++)
+			{
+				final CountDownLatch poolDone = new CountDownLatch(requests);
+				long start = System.nanoTime();
+				for (int i = 0; i < requests; i++)
+				{
+					pool.execute(request(blockMillis, poolDone));
+				}
+				poolDone.await();
+				report(poolThreads + " pool threads", requests, System.nanoTime() - start);
+
+				if (!virtualThreads.isActive())
+				{
+					System.out.println("virtual threads: not supported by this JVM, skipped");
+					continue;
+				}
+				final CountDownLatch virtualDone = new CountDownLatch(requests);
+				start = System.nanoTime();
+				for (int i = 0; i < requests; i++)
+				{
+					Runnable task = request(blockMillis, virtualDone);
+					if (!virtualThreads.execute(task))
+					{
+						task.run();
+					}
+				}
+				virtualDone.await();
+				report("virtual threads", requests, System.nanoTime() - start);
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+			virtualThreads.destroy();
+		}
+	}
+
+	private static Runnable request(final long blockMillis, final CountDownLatch done)
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(blockMillis);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					done.countDown();
+				}
+			}
+		};
+	}
+
+	private static void report(String name, int requests, long elapsedNanos)
+	{
+		long millis = Math.max(1L, elapsedNanos / 1000000L);
+		System.out.println(name + ": " + millis + "ms, " + requests * 1000L / millis + " requests/s");
+	}
+}
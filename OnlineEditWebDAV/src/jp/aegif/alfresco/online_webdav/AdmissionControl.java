@@ -0,0 +1,68 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps HTTP methods to the {@link Bulkhead} limiting them.
+ * <p>
+ * Configured in <tt>online-webdav-context.xml</tt>, typically with one bulkhead for metadata operations
+ * (PROPFIND, LOCK, UNLOCK, ...) and one for content transfer (GET, PUT), so that a burst of large
+ * uploads cannot starve the lock requests Office relies on.
+ */
+public class AdmissionControl
+{
+	private List<Bulkhead> m_bulkheads = Collections.emptyList();
+	private Map<String, Bulkhead> m_byMethod = Collections.emptyMap();
+	private int m_retryAfterSeconds = 5;
+
+	/**
+	 * @param bulkheads the bulkheads, a method must not appear in more than one
+	 */
+	public void setBulkheads(List<Bulkhead> bulkheads)
+	{
+		m_bulkheads = bulkheads;
+	}
+
+	/**
+	 * @param retryAfterSeconds value of the Retry-After header sent with 503 responses
+	 */
+	public void setRetryAfterSeconds(int retryAfterSeconds)
+	{
+		m_retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public void init()
+	{
+		Map<String, Bulkhead> byMethod = new HashMap<String, Bulkhead>();
+		for (Bulkhead bulkhead : m_bulkheads)
+		{
+			for (String method : bulkhead.getMethods())
+			{
+				Bulkhead previous = byMethod.put(method, bulkhead);
+				if (previous != null)
+				{
+					throw new IllegalArgumentException("Method " + method + " is in bulkheads "
+							+ previous.getName() + " and " + bulkhead.getName());
+				}
+			}
+		}
+		m_byMethod = Collections.unmodifiableMap(byMethod);
+	}
+
+	/**
+	 * @param method the HTTP method
+	 * @return the bulkhead for the method, or null if the method is not limited
+	 */
+	public Bulkhead getBulkhead(String method)
+	{
+		return m_byMethod.get(method);
+	}
+
+	public int getRetryAfterSeconds()
+	{
+		return m_retryAfterSeconds;
+	}
+}
@@ -0,0 +1,84 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Repeats the invalidation of cache keys once the transaction that changed them has committed.
+ * <p>
+ * Node policies run inside the changing transaction. A concurrent request may still read the state
+ * before the commit and put it back into the cache right after the policy has dropped it, where it
+ * would stay until it expires. The keys passed to {@link #invalidate(Object)} are dropped at once,
+ * so that the changing transaction sees its own changes, and again after the commit.
+ *
+ * @param <K> the cache key
+ */
+public class AfterCommitInvalidator<K>
+{
+	private static Log logger = LogFactory.getLog(AfterCommitInvalidator.class);
+
+	/**
+	 * The cache the keys are dropped from
+	 */
+	public interface Target<K>
+	{
+		public void invalidate(K key);
+	}
+
+	private final Target<K> m_target;
+	private final String m_resourceKey;
+
+	/**
+	 * @param target the cache
+	 */
+	public AfterCommitInvalidator(Target<K> target)
+	{
+		m_target = target;
+		m_resourceKey = AfterCommitInvalidator.class.getName() + "." + System.identityHashCode(this);
+	}
+
+	/**
+	 * Drop a key now and, if a transaction is active, again after it has committed.
+	 *
+	 * @param key the key
+	 */
+	public void invalidate(K key)
+	{
+		m_target.invalidate(key);
+		if (AlfrescoTransactionSupport.getTransactionId() == null)
+		{
+			return;
+		}
+		Set<K> keys = AlfrescoTransactionSupport.getResource(m_resourceKey);
+		if (keys == null)
+		{
+			final Set<K> pending = new LinkedHashSet<K>();
+			AlfrescoTransactionSupport.bindResource(m_resourceKey, pending);
+			AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+			{
+				@Override
+				public void afterCommit()
+				{
+					for (K pendingKey : pending)
+					{
+						try
+						{
+							m_target.invalidate(pendingKey);
+						}
+						catch (RuntimeException e)
+						{
+							logger.warn("Failed to invalidate " + pendingKey + " after commit", e);
+						}
+					}
+				}
+			});
+			keys = pending;
+		}
+		keys.add(key);
+	}
+}
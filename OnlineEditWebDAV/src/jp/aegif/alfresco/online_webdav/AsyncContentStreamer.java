@@ -0,0 +1,286 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Streams document content to the client from a dedicated I/O pool through a Servlet 3
+ * {@link AsyncContext}.
+ * <p>
+ * {@link GetMethod} does the metadata and precondition work inside the repository transaction and
+ * hands the content reader over once the transaction has committed, so that a slow client holds
+ * neither a container thread nor a database connection for the length of the download.
+ * <p>
+ * Async mode is off by default. It needs a Servlet 3.0 container and the online edit servlet and
+ * every filter in front of it declared with <tt>async-supported</tt>; requests for which
+ * {@link HttpServletRequest#isAsyncSupported()} is false are served synchronously as before.
+ * The <tt>web.xml</tt> shipped with this module uses the 2.3 DTD, so enabling async mode also
+ * requires changing it to the Servlet 3.0 schema (<tt>version="3.0"</tt>) and adding
+ * <tt>&lt;async-supported&gt;true&lt;/async-supported&gt;</tt> to the <tt>Online WebDAV</tt>
+ * servlet and to the filters mapped to its path, <tt>Global Localization Filter</tt> and
+ * <tt>Online WebDAV Authentication Filter</tt>.
+ * <p>
+ * Requests already running asynchronously on a {@link VirtualThreadExecutor} stream inline. The
+ * servlet holds the admission permits of a streamed request and records its metrics when the async
+ * context completes, so the admission limits also cover the download.
+ */
+public class AsyncContentStreamer implements AsyncContentStreamerMBean
+{
+	private static Log logger = LogFactory.getLog(AsyncContentStreamer.class);
+
+	private boolean m_enabled = false;
+	private int m_threads = 16;
+	private int m_queueCapacity = 256;
+	private long m_timeoutMillis = 600000L;
+	private long m_minContentSize = 256L * 1024L;
+
+	private ThreadPoolExecutor m_executor;
+
+	private final AtomicLong m_started = new AtomicLong();
+	private final AtomicLong m_completed = new AtomicLong();
+	private final AtomicLong m_failed = new AtomicLong();
+	private final AtomicLong m_timedOut = new AtomicLong();
+	private final AtomicLong m_callerRuns = new AtomicLong();
+
+	/**
+	 * @param enabled true to stream large documents asynchronously
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		m_enabled = enabled;
+	}
+
+	/**
+	 * @param threads the number of streaming threads
+	 */
+	public void setThreads(int threads)
+	{
+		m_threads = threads;
+	}
+
+	/**
+	 * @param queueCapacity the number of downloads that may wait for a streaming thread, further
+	 *            downloads are streamed on the container thread
+	 */
+	public void setQueueCapacity(int queueCapacity)
+	{
+		m_queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param timeoutMillis the time allowed for a single download
+	 */
+	public void setTimeoutMillis(long timeoutMillis)
+	{
+		m_timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @param minContentSize documents smaller than this are streamed synchronously
+	 */
+	public void setMinContentSize(long minContentSize)
+	{
+		m_minContentSize = minContentSize;
+	}
+
+	public void init()
+	{
+		if (!m_enabled)
+		{
+			return;
+		}
+		final AtomicInteger threadNumber = new AtomicInteger();
+		m_executor = new ThreadPoolExecutor(m_threads, m_threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(m_queueCapacity), new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, "OnlineWebDAV-content-" + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		m_executor.allowCoreThreadTimeOut(true);
+	}
+
+	public void destroy()
+	{
+		if (m_executor != null)
+		{
+			m_executor.shutdownNow();
+			m_executor = null;
+		}
+	}
+
+	/**
+	 * @param request the current request
+	 * @param reader the content to send
+	 * @return true if the content should be sent with {@link #stream(HttpServletRequest, HttpServletResponse, ContentReader)}
+	 */
+	public boolean canStream(HttpServletRequest request, ContentReader reader)
+	{
+		return m_executor != null && reader.getSize() >= m_minContentSize && request.isAsyncSupported()
+				&& !request.isAsyncStarted();
+	}
+
+	/**
+	 * Put the request into async mode and copy the content to the response on a streaming thread.
+	 * Must be called outside the repository transaction, the response headers must already be set.
+	 * 
+	 * @param request the current request
+	 * @param response the current response
+	 * @param reader the content to send
+	 */
+	public void stream(HttpServletRequest request, HttpServletResponse response, final ContentReader reader)
+	{
+		final AsyncContext asyncContext = request.startAsync(request, response);
+		final AtomicBoolean done = new AtomicBoolean();
+		final String uri = request.getRequestURI();
+		asyncContext.setTimeout(m_timeoutMillis);
+		asyncContext.addListener(new AsyncListener()
+		{
+			public void onTimeout(AsyncEvent event) throws IOException
+			{
+				m_timedOut.incrementAndGet();
+				if (logger.isWarnEnabled())
+					logger.warn("Content streaming timed out after " + m_timeoutMillis + "ms [" + uri + "]");
+				if (done.compareAndSet(false, true))
+				{
+					asyncContext.complete();
+				}
+			}
+
+			public void onError(AsyncEvent event) throws IOException
+			{
+				if (logger.isDebugEnabled())
+					logger.debug("Content streaming failed [" + uri + "]", event.getThrowable());
+			}
+
+			public void onComplete(AsyncEvent event) throws IOException
+			{
+			}
+
+			public void onStartAsync(AsyncEvent event) throws IOException
+			{
+			}
+		});
+		m_started.incrementAndGet();
+
+		Runnable task = new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					reader.getContent(asyncContext.getResponse().getOutputStream());
+					m_completed.incrementAndGet();
+				}
+				catch (ContentIOException e)
+				{
+					// Usually the client dropped the connection
+					m_failed.incrementAndGet();
+					if (logger.isDebugEnabled())
+						logger.debug("Error while streaming content [" + uri + "]", e);
+				}
+				catch (IOException e)
+				{
+					m_failed.incrementAndGet();
+					if (logger.isDebugEnabled())
+						logger.debug("Error while streaming content [" + uri + "]", e);
+				}
+				catch (IllegalStateException e)
+				{
+					// The async context has already been completed by a timeout
+					m_failed.incrementAndGet();
+					if (logger.isDebugEnabled())
+						logger.debug("Content streaming abandoned [" + uri + "]", e);
+				}
+				finally
+				{
+					if (done.compareAndSet(false, true))
+					{
+						asyncContext.complete();
+					}
+				}
+			}
+		};
+
+		try
+		{
+			m_executor.execute(task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			m_callerRuns.incrementAndGet();
+			task.run();
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return m_enabled;
+	}
+
+	public long getMinContentSize()
+	{
+		return m_minContentSize;
+	}
+
+	public long getTimeoutMillis()
+	{
+		return m_timeoutMillis;
+	}
+
+	public int getActiveStreams()
+	{
+		return m_executor == null ? 0 : m_executor.getActiveCount();
+	}
+
+	public int getQueuedStreams()
+	{
+		return m_executor == null ? 0 : m_executor.getQueue().size();
+	}
+
+	public long getStartedCount()
+	{
+		return m_started.get();
+	}
+
+	public long getCompletedCount()
+	{
+		return m_completed.get();
+	}
+
+	public long getFailedCount()
+	{
+		return m_failed.get();
+	}
+
+	public long getTimedOutCount()
+	{
+		return m_timedOut.get();
+	}
+
+	public long getCallerRunsCount()
+	{
+		return m_callerRuns.get();
+	}
+}
@@ -0,0 +1,39 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link AsyncContentStreamer}
+ */
+public interface AsyncContentStreamerMBean
+{
+	public boolean isEnabled();
+
+	public long getMinContentSize();
+
+	public long getTimeoutMillis();
+
+	/**
+	 * @return the number of documents currently being streamed
+	 */
+	public int getActiveStreams();
+
+	/**
+	 * @return the number of documents waiting for a streaming thread
+	 */
+	public int getQueuedStreams();
+
+	public long getStartedCount();
+
+	public long getCompletedCount();
+
+	/**
+	 * @return the number of streams ended by an I/O error, usually a client that went away
+	 */
+	public long getFailedCount();
+
+	public long getTimedOutCount();
+
+	/**
+	 * @return the number of streams run on the container thread because the queue was full
+	 */
+	public long getCallerRunsCount();
+}
@@ -0,0 +1,173 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency limit for a class of WebDAV methods.
+ * <p>
+ * At most <tt>maxConcurrent</tt> requests of the methods in the bulkhead run at the same time. Up to
+ * <tt>maxQueued</tt> further requests wait at most <tt>maxWaitMillis</tt> for a permit; anything beyond
+ * that is refused immediately so that the caller can answer 503.
+ */
+public class Bulkhead implements BulkheadMBean
+{
+	private String m_name;
+	private Set<String> m_methods = Collections.emptySet();
+	private int m_maxConcurrent = 50;
+	private int m_maxQueued = 50;
+	private long m_maxWaitMillis = 5000L;
+
+	private Semaphore m_permits;
+
+	private final AtomicInteger m_queued = new AtomicInteger();
+	private final AtomicLong m_admitted = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+	private final AtomicLong m_timedOut = new AtomicLong();
+
+	/**
+	 * @param name the name of the bulkhead, e.g. content
+	 */
+	public void setName(String name)
+	{
+		m_name = name;
+	}
+
+	/**
+	 * @param methods the HTTP methods limited by this bulkhead
+	 */
+	public void setMethods(List<String> methods)
+	{
+		m_methods = Collections.unmodifiableSet(new HashSet<String>(methods));
+	}
+
+	public void setMaxConcurrent(int maxConcurrent)
+	{
+		m_maxConcurrent = maxConcurrent;
+	}
+
+	public void setMaxQueued(int maxQueued)
+	{
+		m_maxQueued = maxQueued;
+	}
+
+	public void setMaxWaitMillis(long maxWaitMillis)
+	{
+		m_maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Create the permits once the limits are configured
+	 */
+	public void init()
+	{
+		if (m_maxConcurrent <= 0)
+		{
+			throw new IllegalArgumentException("maxConcurrent must be positive for bulkhead " + m_name);
+		}
+		m_permits = new Semaphore(m_maxConcurrent, true);
+	}
+
+	/**
+	 * @return the HTTP methods limited by this bulkhead
+	 */
+	public Set<String> getMethods()
+	{
+		return m_methods;
+	}
+
+	/**
+	 * Take a permit, waiting in the bounded queue if none is free.
+	 * 
+	 * @return true if a permit was taken and must be given back with {@link #release()}
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean acquire() throws InterruptedException
+	{
+		if (m_permits.tryAcquire())
+		{
+			m_admitted.incrementAndGet();
+			return true;
+		}
+
+		if (m_queued.incrementAndGet() > m_maxQueued)
+		{
+			m_queued.decrementAndGet();
+			m_rejected.incrementAndGet();
+			return false;
+		}
+		try
+		{
+			if (m_permits.tryAcquire(m_maxWaitMillis, TimeUnit.MILLISECONDS))
+			{
+				m_admitted.incrementAndGet();
+				return true;
+			}
+			m_timedOut.incrementAndGet();
+			return false;
+		}
+		finally
+		{
+			m_queued.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Give back a permit taken by {@link #acquire()}
+	 */
+	public void release()
+	{
+		m_permits.release();
+	}
+
+	public String getName()
+	{
+		return m_name;
+	}
+
+	public int getMaxConcurrent()
+	{
+		return m_maxConcurrent;
+	}
+
+	public int getMaxQueued()
+	{
+		return m_maxQueued;
+	}
+
+	public long getMaxWaitMillis()
+	{
+		return m_maxWaitMillis;
+	}
+
+	public int getActive()
+	{
+		return m_permits == null ? 0 : m_maxConcurrent - m_permits.availablePermits();
+	}
+
+	public int getQueued()
+	{
+		return m_queued.get();
+	}
+
+	public long getAdmittedCount()
+	{
+		return m_admitted.get();
+	}
+
+	public long getRejectedCount()
+	{
+		return m_rejected.get();
+	}
+
+	public long getTimedOutCount()
+	{
+		return m_timedOut.get();
+	}
+}
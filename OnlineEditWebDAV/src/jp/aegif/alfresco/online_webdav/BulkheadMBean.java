@@ -0,0 +1,37 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link Bulkhead}
+ */
+public interface BulkheadMBean
+{
+	public String getName();
+
+	public int getMaxConcurrent();
+
+	public int getMaxQueued();
+
+	public long getMaxWaitMillis();
+
+	/**
+	 * @return the number of requests currently holding a permit
+	 */
+	public int getActive();
+
+	/**
+	 * @return the number of requests currently waiting for a permit
+	 */
+	public int getQueued();
+
+	public long getAdmittedCount();
+
+	/**
+	 * @return the number of requests refused because the wait queue was full
+	 */
+	public long getRejectedCount();
+
+	/**
+	 * @return the number of requests refused because no permit became free in time
+	 */
+	public long getTimedOutCount();
+}
@@ -0,0 +1,118 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Date;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+
+/**
+ * Entity tag of one version of a node.
+ * <p>
+ * The plain and quoted forms are built once when the tag is created, so that the tag can be written
+ * to PROPFIND responses and headers and compared against <tt>If</tt>, <tt>If-Match</tt> and
+ * <tt>If-None-Match</tt> values any number of times without building strings. Tags are created by
+ * {@link WebDAVHelper#getETag(FileInfo)} and cached with the file info in {@link FileInfoCache}.
+ * <p>
+ * {@link #forVersion(FileInfo)} derives a weak validator from the node id and modified date, written
+ * without the <tt>W/</tt> prefix as the Alfresco WebDAV server always did. A strong tag, e.g. from a
+ * content hash, can be created with {@link #ETag(String, boolean)} by overriding
+ * {@link WebDAVHelper#createETag(FileInfo)}.
+ */
+public final class ETag
+{
+	private final String m_value;
+	private final String m_quotedValue;
+	private final boolean m_strong;
+
+	/**
+	 * @param value the unquoted tag value
+	 * @param strong true if the tag changes whenever the content changes
+	 */
+	public ETag(String value, boolean strong)
+	{
+		m_value = value;
+		m_quotedValue = '"' + value + '"';
+		m_strong = strong;
+	}
+
+	/**
+	 * Make the tag of the current version of a node from its id and modified date.
+	 * 
+	 * @param nodeInfo the node
+	 * @return ETag
+	 */
+	public static ETag forVersion(FileInfo nodeInfo)
+	{
+		String id = nodeInfo.getNodeRef().getId();
+		Serializable modVal = nodeInfo.getProperties().get(ContentModel.PROP_MODIFIED);
+		if (modVal == null)
+		{
+			return new ETag(id, false);
+		}
+
+		long modified = (modVal instanceof Date) ? ((Date) modVal).getTime() : DefaultTypeConverter.INSTANCE.longValue(modVal);
+		StringBuilder etag = new StringBuilder(id.length() + 21);
+		etag.append(id).append('_').append(modified);
+		return new ETag(etag.toString(), false);
+	}
+
+	/**
+	 * @return the tag without quotes, as written in the <tt>getetag</tt> property
+	 */
+	public String getValue()
+	{
+		return m_value;
+	}
+
+	/**
+	 * @return the tag with quotes, as written in the <tt>ETag</tt> header
+	 */
+	public String getQuotedValue()
+	{
+		return m_quotedValue;
+	}
+
+	/**
+	 * @return true if the tag is a strong validator
+	 */
+	public boolean isStrong()
+	{
+		return m_strong;
+	}
+
+	/**
+	 * @param quotedTag a quoted tag taken from a request header
+	 * @return true if the tag is this tag
+	 */
+	public boolean matches(String quotedTag)
+	{
+		return m_quotedValue.equals(quotedTag);
+	}
+
+	/**
+	 * @param quotedTags quoted tags taken from a request header
+	 * @return true if any of the tags is this tag
+	 */
+	public boolean matchesAny(Collection<String> quotedTags)
+	{
+		return quotedTags.contains(m_quotedValue);
+	}
+
+	public boolean equals(Object obj)
+	{
+		return obj instanceof ETag && m_value.equals(((ETag) obj).m_value);
+	}
+
+	public int hashCode()
+	{
+		return m_value.hashCode();
+	}
+
+	public String toString()
+	{
+		return m_quotedValue;
+	}
+}
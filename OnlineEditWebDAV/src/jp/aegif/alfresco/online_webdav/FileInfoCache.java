@@ -0,0 +1,376 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Size-bounded cache of the {@link FileInfo} returned by {@link WebDAVHelper#getFileInfoFromRequestPath}.
+ * <p>
+ * One Office open/save cycle looks up the same document many times. Entries are dropped by the
+ * node update, delete and move policies, at once and again after the commit, and expire after
+ * <tt>timeToLiveSeconds</tt>. A hit is only returned if the node's modified date, read from the
+ * node cache without permission checks, still matches the cached one, which catches updates made
+ * on other cluster members and entries put back by a reader racing a commit. It is only returned
+ * to users whose read permission has been checked since the entry was cached, so permission changes
+ * are honoured within the time to live.
+ * <p>
+ * Read-write transactions bypass the cache: they neither read it, so that preconditions and ETags
+ * are checked against the current version, nor fill it, so that state that has not been committed,
+ * and may be rolled back, is never shared with other requests.
+ */
+public class FileInfoCache implements FileInfoCacheMBean,
+		NodeServicePolicies.OnUpdateNodePolicy,
+		NodeServicePolicies.OnUpdatePropertiesPolicy,
+		NodeServicePolicies.BeforeDeleteNodePolicy,
+		NodeServicePolicies.OnMoveNodePolicy
+{
+	private static Log logger = LogFactory.getLog(FileInfoCache.class);
+
+	private PolicyComponent m_policyComponent;
+	private NodeService m_nodeService;
+	private PermissionService m_permissionService;
+
+	private int m_maxEntries = 10000;
+	private long m_timeToLiveMillis = 30000L;
+
+	private final ConcurrentMap<NodeRef, Entry> m_entries = new ConcurrentHashMap<NodeRef, Entry>();
+
+	private final AtomicLong m_hitCount = new AtomicLong();
+	private final AtomicLong m_missCount = new AtomicLong();
+	private final AtomicLong m_expiredCount = new AtomicLong();
+	private final AtomicLong m_staleCount = new AtomicLong();
+	private final AtomicLong m_permissionCheckCount = new AtomicLong();
+	private final AtomicLong m_invalidationCount = new AtomicLong();
+
+	private final AfterCommitInvalidator<NodeRef> m_invalidator = new AfterCommitInvalidator<NodeRef>(
+			new AfterCommitInvalidator.Target<NodeRef>()
+			{
+				public void invalidate(NodeRef nodeRef)
+				{
+					if (m_entries.remove(nodeRef) != null)
+					{
+						m_invalidationCount.incrementAndGet();
+					}
+				}
+			});
+
+	/**
+	 * @param policyComponent the policy component, used to bind the invalidation behaviours
+	 */
+	public void setPolicyComponent(PolicyComponent policyComponent)
+	{
+		m_policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param nodeService the node service used to read the modified date, without permission checks
+	 */
+	public void setNodeService(NodeService nodeService)
+	{
+		m_nodeService = nodeService;
+	}
+
+	/**
+	 * @param permissionService the permission service
+	 */
+	public void setPermissionService(PermissionService permissionService)
+	{
+		m_permissionService = permissionService;
+	}
+
+	/**
+	 * @param maxEntries the maximum number of cached nodes
+	 */
+	public void setMaxEntries(int maxEntries)
+	{
+		m_maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param timeToLiveSeconds how long an entry is kept
+	 */
+	public void setTimeToLiveSeconds(long timeToLiveSeconds)
+	{
+		m_timeToLiveMillis = timeToLiveSeconds * 1000L;
+	}
+
+	public void init()
+	{
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdateNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "onUpdateNode", NotificationFrequency.EVERY_EVENT));
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "onUpdateProperties", NotificationFrequency.EVERY_EVENT));
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "onMoveNode", NotificationFrequency.EVERY_EVENT));
+	}
+
+	/**
+	 * Return the cached file info of a node, if it is still current and readable by the current user.
+	 * 
+	 * @param nodeRef the node
+	 * @return the file info, or null if it must be loaded from the repository
+	 */
+	public FileInfo get(NodeRef nodeRef)
+	{
+		if (isReadWrite())
+		{
+			return null;
+		}
+		Entry entry = m_entries.get(nodeRef);
+		if (entry == null)
+		{
+			m_missCount.incrementAndGet();
+			return null;
+		}
+		if (System.currentTimeMillis() >= entry.expiresAt)
+		{
+			if (m_entries.remove(nodeRef, entry))
+			{
+				m_expiredCount.incrementAndGet();
+			}
+			m_missCount.incrementAndGet();
+			return null;
+		}
+		if (!isCurrent(nodeRef, entry))
+		{
+			if (m_entries.remove(nodeRef, entry))
+			{
+				m_staleCount.incrementAndGet();
+			}
+			m_missCount.incrementAndGet();
+			return null;
+		}
+		String userName = AuthenticationUtil.getRunAsUser();
+		if (userName == null || !entry.readers.contains(userName))
+		{
+			m_permissionCheckCount.incrementAndGet();
+			// Leave access denied to the repository lookup so that it is reported the usual way
+			if (userName == null || m_permissionService.hasPermission(nodeRef, PermissionService.READ) != AccessStatus.ALLOWED)
+			{
+				m_missCount.incrementAndGet();
+				return null;
+			}
+			entry.readers.add(userName);
+		}
+		m_hitCount.incrementAndGet();
+		return entry.fileInfo;
+	}
+
+	/**
+	 * Return the ETag cached with a file info previously returned by {@link #get(NodeRef)} or passed to
+	 * {@link #put(NodeRef, FileInfo)}, creating it on first use. The ETag is thereby tied to a committed
+	 * version whose modified date has been checked; a read-write transaction always gets a fresh one, so
+	 * that its preconditions are checked against the current version and its reads never seed the cache.
+	 * 
+	 * @param fileInfo the file info
+	 * @param davHelper the helper creating the ETag
+	 * @return the ETag, or null if the file info is not the cached one or the transaction is read-write
+	 */
+	public ETag getETag(FileInfo fileInfo, WebDAVHelper davHelper)
+	{
+		Entry entry = m_entries.get(fileInfo.getNodeRef());
+		if (entry == null || entry.fileInfo != fileInfo || isReadWrite())
+		{
+			return null;
+		}
+		ETag etag = entry.etag;
+		if (etag == null)
+		{
+			// Racing threads compute the same tag, no need to synchronize
+			etag = davHelper.createETag(fileInfo);
+			entry.etag = etag;
+		}
+		return etag;
+	}
+
+	/**
+	 * Cache the file info loaded from the repository, unless it has been read by a read-write transaction.
+	 * 
+	 * @param nodeRef the node
+	 * @param fileInfo the file info
+	 */
+	public void put(NodeRef nodeRef, FileInfo fileInfo)
+	{
+		if (m_maxEntries <= 0 || m_timeToLiveMillis <= 0 || isReadWrite())
+		{
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (m_entries.size() >= m_maxEntries)
+		{
+			evict(now);
+		}
+		m_entries.put(nodeRef, new Entry(fileInfo, now + m_timeToLiveMillis));
+	}
+
+	/**
+	 * Drop a node from the cache, and again after the current transaction has committed.
+	 * 
+	 * @param nodeRef the node to drop from the cache
+	 */
+	public void invalidate(NodeRef nodeRef)
+	{
+		m_invalidator.invalidate(nodeRef);
+	}
+
+	public void clear()
+	{
+		m_entries.clear();
+	}
+
+	public void onUpdateNode(NodeRef nodeRef)
+	{
+		invalidate(nodeRef);
+	}
+
+	public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after)
+	{
+		invalidate(nodeRef);
+	}
+
+	public void beforeDeleteNode(NodeRef nodeRef)
+	{
+		invalidate(nodeRef);
+	}
+
+	public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef)
+	{
+		invalidate(oldChildAssocRef.getChildRef());
+		invalidate(newChildAssocRef.getChildRef());
+	}
+
+	private boolean isCurrent(NodeRef nodeRef, Entry entry)
+	{
+		try
+		{
+			Date modified = (Date) m_nodeService.getProperty(nodeRef, ContentModel.PROP_MODIFIED);
+			Date cached = entry.fileInfo.getModifiedDate();
+			return modified == null ? cached == null : modified.equals(cached);
+		}
+		catch (InvalidNodeRefException e)
+		{
+			return false;
+		}
+	}
+
+	private static boolean isReadWrite()
+	{
+		return AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_READ_WRITE;
+	}
+
+	/**
+	 * Drop expired entries and, if the cache is still full, an arbitrary tenth of the remaining ones.
+	 */
+	private void evict(long now)
+	{
+		int removed = 0;
+		for (Iterator<Entry> it = m_entries.values().iterator(); it.hasNext();)
+		{
+			if (now >= it.next().expiresAt)
+			{
+				it.remove();
+				removed++;
+			}
+		}
+		if (m_entries.size() >= m_maxEntries)
+		{
+			int toRemove = Math.max(1, m_maxEntries / 10);
+			for (Iterator<Entry> it = m_entries.values().iterator(); it.hasNext() && toRemove > 0; toRemove--)
+			{
+				it.next();
+				it.remove();
+				removed++;
+			}
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Evicted " + removed + " file infos, size: " + m_entries.size());
+	}
+
+	public long getHitCount()
+	{
+		return m_hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return m_missCount.get();
+	}
+
+	public long getExpiredCount()
+	{
+		return m_expiredCount.get();
+	}
+
+	public long getStaleCount()
+	{
+		return m_staleCount.get();
+	}
+
+	public long getPermissionCheckCount()
+	{
+		return m_permissionCheckCount.get();
+	}
+
+	public long getInvalidationCount()
+	{
+		return m_invalidationCount.get();
+	}
+
+	public int getSize()
+	{
+		return m_entries.size();
+	}
+
+	public int getMaxEntries()
+	{
+		return m_maxEntries;
+	}
+
+	public long getTimeToLiveSeconds()
+	{
+		return m_timeToLiveMillis / 1000L;
+	}
+
+	private static final class Entry
+	{
+		private final FileInfo fileInfo;
+		private final long expiresAt;
+		private volatile ETag etag;
+		// users whose read permission has been checked
+		private final Set<String> readers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		private Entry(FileInfo fileInfo, long expiresAt)
+		{
+			this.fileInfo = fileInfo;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link FileInfoCache}
+ */
+public interface FileInfoCacheMBean
+{
+	public long getHitCount();
+
+	public long getMissCount();
+
+	/**
+	 * @return the number of entries dropped because their time to live had passed
+	 */
+	public long getExpiredCount();
+
+	/**
+	 * @return the number of entries dropped because the node was modified since it was cached
+	 */
+	public long getStaleCount();
+
+	/**
+	 * @return the number of read permission checks made on cache hits, one per user and entry
+	 */
+	public long getPermissionCheckCount();
+
+	/**
+	 * @return the number of entries dropped by node policies
+	 */
+	public long getInvalidationCount();
+
+	public int getSize();
+
+	public int getMaxEntries();
+
+	public long getTimeToLiveSeconds();
+
+	public void clear();
+}
@@ -66,6 +66,9 @@ public class GetMethod extends WebDAVMethod
 	protected boolean m_returnContent = true;
 	private String byteRanges;
 
+	// Content to stream once the transaction has completed, see AsyncContentStreamer
+	private ContentReader m_asyncReader = null;
+
 	/**
 	 * Default constructor
 	 */
@@ -175,7 +178,7 @@ public class GetMethod extends WebDAVMethod
 
 		FileInfo realNodeInfo;
 		try {
-			realNodeInfo = getDAVHelper().getFileInfoFromRequestPath(m_request);
+			realNodeInfo = getNodeContext().getFileInfo();
 		}
 		catch (FileNotFoundException e)
 		{
@@ -184,10 +187,11 @@ public class GetMethod extends WebDAVMethod
 
 		// Return the node details, and content if requested, check that the node passes the pre-conditions
 
-		checkPreConditions(realNodeInfo);
+		ETag etag = getNodeContext().getETag();
+		checkPreConditions(realNodeInfo, etag);
 
 		// Build the response header
-		m_response.setHeader(WebDAV.HEADER_ETAG, getDAVHelper().makeQuotedETag(realNodeInfo));
+		m_response.setHeader(WebDAV.HEADER_ETAG, etag.getQuotedValue());
 
 		Date modifiedDate = realNodeInfo.getModifiedDate();
 		if (modifiedDate != null)
@@ -278,23 +282,43 @@ public class GetMethod extends WebDAVMethod
 				m_response.setHeader(WebDAV.HEADER_CONTENT_LENGTH, Long.toString(reader.getSize()));
 				m_response.setHeader(WebDAV.HEADER_CONTENT_TYPE, reader.getMimetype());
 
-				// copy the content to the response output stream
-				reader.getContent(m_response.getOutputStream());
+				AsyncContentStreamer streamer = getDAVHelper().getAsyncContentStreamer();
+				if (streamer != null && streamer.canStream(m_request, reader))
+				{
+					// stream from the I/O pool after the transaction has been released
+					m_asyncReader = reader;
+				}
+				else
+				{
+					// copy the content to the response output stream
+					reader.getContent(m_response.getOutputStream());
+				}
 			}
 		}
 	}
 
+	/**
+	 * Start streaming the content outside the transaction if it was deferred by {@link #attemptReadContent(FileInfo, ContentReader)}
+	 */
+	@Override
+	protected void generateResponseImpl() throws Exception
+	{
+		if (m_asyncReader != null)
+		{
+			getDAVHelper().getAsyncContentStreamer().stream(m_request, m_response, m_asyncReader);
+			m_asyncReader = null;
+		}
+	}
+
 	/**
 	 * Checks the If header conditions
 	 * 
 	 * @param nodeInfo the node to check
+	 * @param etag the ETag of the node
 	 * @throws WebDAVServerException if a pre-condition is not met
 	 */
-	private void checkPreConditions(FileInfo nodeInfo) throws WebDAVServerException
+	private void checkPreConditions(FileInfo nodeInfo, ETag etag) throws WebDAVServerException
 	{
-		// Make an etag for the node
-
-		String strETag = getDAVHelper().makeQuotedETag(nodeInfo);
 		TypeConverter typeConv = DefaultTypeConverter.INSTANCE;
 
 		// Check the If-Match header, don't send any content back if none of the tags in
@@ -302,7 +326,7 @@ public class GetMethod extends WebDAVMethod
 
 		if (ifMatchTags != null)
 		{
-			if (ifMatchTags.contains(WebDAV.ASTERISK) == false && ifMatchTags.contains(strETag) == false)
+			if (ifMatchTags.contains(WebDAV.ASTERISK) == false && etag.matchesAny(ifMatchTags) == false)
 			{
 				throw new WebDAVServerException(HttpServletResponse.SC_PRECONDITION_FAILED);
 			}
@@ -313,7 +337,7 @@ public class GetMethod extends WebDAVMethod
 
 		if (ifNoneMatchTags != null)
 		{
-			if (ifNoneMatchTags.contains(WebDAV.ASTERISK) || ifNoneMatchTags.contains(strETag))
+			if (ifNoneMatchTags.contains(WebDAV.ASTERISK) || etag.matchesAny(ifNoneMatchTags))
 			{
 				throw new WebDAVServerException(HttpServletResponse.SC_NOT_MODIFIED);
 			}
@@ -396,7 +420,8 @@ public class GetMethod extends WebDAVMethod
 				buffer.append('.');
 				buffer.append(strRight);
 			}
-			buffer.append(' ').append(WebDAVHelper.encodeHTML(I18NUtil.getMessage("webdav.size.kilobytes")));
+			buffer.append(' ');
+			HtmlEscaper.append(buffer, I18NUtil.getMessage("webdav.size.kilobytes"));
 
 			strFormattedSize = buffer.toString();
 		}
@@ -411,7 +436,8 @@ public class GetMethod extends WebDAVMethod
 				buffer.append('.');
 				buffer.append(strRight);
 			}
-			buffer.append(' ').append(WebDAVHelper.encodeHTML(I18NUtil.getMessage("webdav.size.megabytes")));
+			buffer.append(' ');
+			HtmlEscaper.append(buffer, I18NUtil.getMessage("webdav.size.megabytes"));
 
 			strFormattedSize = buffer.toString();
 		}
@@ -0,0 +1,220 @@
+package jp.aegif.alfresco.online_webdav;
+
+import org.alfresco.repo.webdav.WebDAV;
+
+/**
+ * Percent-encoder for the path segments of the hrefs written to WebDAV responses.
+ * <p>
+ * Characters are classified through a precomputed table and written straight into the caller's
+ * buffer, so that a multistatus response with many hrefs does not create a string per segment.
+ * Segments that need no encoding are appended as they are.
+ * <p>
+ * {@link #STANDARD} encodes everything but the unreserved characters of RFC 3986 and
+ * <tt>!*'()</tt>, and writes non-ASCII characters as UTF-8 octets. {@link #MICROSOFT} only
+ * encodes the reserved and unsafe symbols and leaves non-ASCII characters alone (ALF-5333), for
+ * the Microsoft Data Access Internet Publishing provider which decodes hrefs as ISO-8859-1.
+ */
+public final class HrefEncoder
+{
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/** Encoder for all clients but the one listed in {@link #forUserAgent(String)} */
+	public static final HrefEncoder STANDARD;
+
+	/** Encoder for Microsoft Web Folders, i.e. the Data Access Internet Publishing provider */
+	public static final HrefEncoder MICROSOFT;
+
+	static
+	{
+		boolean[] safe = new boolean[128];
+		for (char c = 'a'; c <= 'z'; c++)
+		{
+			safe[c] = true;
+		}
+		for (char c = 'A'; c <= 'Z'; c++)
+		{
+			safe[c] = true;
+		}
+		for (char c = '0'; c <= '9'; c++)
+		{
+			safe[c] = true;
+		}
+		for (char c : "-_.~!*'()".toCharArray())
+		{
+			safe[c] = true;
+		}
+		STANDARD = new HrefEncoder(safe, true);
+
+		safe = new boolean[128];
+		for (char c = 0; c < 128; c++)
+		{
+			safe[c] = true;
+		}
+		// reserved
+		for (char c : ";/?:@&=+".toCharArray())
+		{
+			safe[c] = false;
+		}
+		// unsafe
+		for (char c : "\"#%><".toCharArray())
+		{
+			safe[c] = false;
+		}
+		MICROSOFT = new HrefEncoder(safe, false);
+	}
+
+	private final boolean[] m_safe;
+	private final boolean m_encodeNonAscii;
+
+	private HrefEncoder(boolean[] safe, boolean encodeNonAscii)
+	{
+		m_safe = safe;
+		m_encodeNonAscii = encodeNonAscii;
+	}
+
+	/**
+	 * @param userAgent the User-Agent header of the request, may be null
+	 * @return the encoder to use for the client
+	 */
+	public static HrefEncoder forUserAgent(String userAgent)
+	{
+		if (userAgent != null && userAgent.startsWith(WebDAV.AGENT_MICROSOFT_DATA_ACCESS_INTERNET_PUBLISHING_PROVIDER_DAV))
+		{
+			return MICROSOFT;
+		}
+		return STANDARD;
+	}
+
+	/**
+	 * @param s the path segment
+	 * @return the encoded segment, or the segment itself if nothing needs encoding
+	 */
+	public String encode(String s)
+	{
+		int len = s.length();
+		int first = firstUnsafe(s, 0, len);
+		if (first == len)
+		{
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(len + 16);
+		sb.append(s, 0, first);
+		appendEncoded(sb, s, first, len);
+		return sb.toString();
+	}
+
+	/**
+	 * Append an encoded path segment.
+	 * 
+	 * @param sb the buffer
+	 * @param s the string holding the segment
+	 * @param start start of the segment
+	 * @param end end of the segment, exclusive
+	 */
+	public void appendSegment(StringBuilder sb, String s, int start, int end)
+	{
+		int first = firstUnsafe(s, start, end);
+		sb.append(s, start, first);
+		if (first < end)
+		{
+			appendEncoded(sb, s, first, end);
+		}
+	}
+
+	/**
+	 * Append an encoded path, encoding each segment and dropping empty ones. A leading or trailing
+	 * separator is not written.
+	 * 
+	 * @param sb the buffer
+	 * @param path the decoded path, segments separated by <tt>/</tt>
+	 */
+	public void appendPath(StringBuilder sb, String path)
+	{
+		int len = path.length();
+		boolean first = true;
+		int start = 0;
+		while (start < len)
+		{
+			int end = path.indexOf(WebDAVHelper.PathSeperatorChar, start);
+			if (end == -1)
+			{
+				end = len;
+			}
+			if (end > start)
+			{
+				if (!first)
+				{
+					sb.append(WebDAVHelper.PathSeperatorChar);
+				}
+				appendSegment(sb, path, start, end);
+				first = false;
+			}
+			start = end + 1;
+		}
+	}
+
+	private int firstUnsafe(String s, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			char c = s.charAt(i);
+			if (c < 128 ? !m_safe[c] : m_encodeNonAscii)
+			{
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private void appendEncoded(StringBuilder sb, String s, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			char c = s.charAt(i);
+			if (c < 128)
+			{
+				if (m_safe[c])
+				{
+					sb.append(c);
+				}
+				else
+				{
+					appendOctet(sb, c);
+				}
+			}
+			else if (!m_encodeNonAscii)
+			{
+				sb.append(c);
+			}
+			else if (c < 0x800)
+			{
+				appendOctet(sb, 0xC0 | (c >> 6));
+				appendOctet(sb, 0x80 | (c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1)))
+			{
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				appendOctet(sb, 0xF0 | (cp >> 18));
+				appendOctet(sb, 0x80 | ((cp >> 12) & 0x3F));
+				appendOctet(sb, 0x80 | ((cp >> 6) & 0x3F));
+				appendOctet(sb, 0x80 | (cp & 0x3F));
+			}
+			else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+			{
+				// Unpaired surrogate, written as '?' like String.getBytes does
+				appendOctet(sb, '?');
+			}
+			else
+			{
+				appendOctet(sb, 0xE0 | (c >> 12));
+				appendOctet(sb, 0x80 | ((c >> 6) & 0x3F));
+				appendOctet(sb, 0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static void appendOctet(StringBuilder sb, int b)
+	{
+		sb.append('%').append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+	}
+}
@@ -0,0 +1,142 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Escapes text for HTML output.
+ * <p>
+ * The escaped text is written into a single char array sized for the worst case. Entities are
+ * copied from tables, and numeric character references are written digit by digit, so that no
+ * string is created per escaped character. That matters for CJK text, where every character is
+ * written as a numeric reference. <tt>bench/HtmlEscaperBench</tt> checks the output is the same as
+ * the one of
+ * the former <tt>WebDAVHelper.encodeHTML</tt>: all non basic latin characters are written as
+ * <tt>&amp;#nnnn;</tt> of their UTF-16 code unit, except for the few having a named entity.
+ */
+public final class HtmlEscaper
+{
+	// "&#65535;"
+	private static final int MAX_ESCAPED_LENGTH = 8;
+
+	private static final char[][] ASCII_ENTITIES = new char[128][];
+
+	private static final char[] EURO = "&euro;".toCharArray();
+	private static final char[] LAQUO = "&laquo;".toCharArray();
+	private static final char[] RAQUO = "&raquo;".toCharArray();
+	private static final char[] NBSP = "&nbsp;".toCharArray();
+
+	static
+	{
+		ASCII_ENTITIES['"'] = "&quot;".toCharArray();
+		ASCII_ENTITIES['&'] = "&amp;".toCharArray();
+		ASCII_ENTITIES['<'] = "&lt;".toCharArray();
+		ASCII_ENTITIES['>'] = "&gt;".toCharArray();
+	}
+
+	private HtmlEscaper()
+	{
+	}
+
+	/**
+	 * @param string the text to escape, may be null
+	 * @return the escaped text, the text itself if nothing needs escaping, or an empty string for null
+	 */
+	public static String escape(String string)
+	{
+		if (string == null)
+		{
+			return "";
+		}
+
+		int len = string.length();
+		int i = 0;
+		while (i < len && !needsEscaping(string.charAt(i)))
+		{
+			i++;
+		}
+		if (i == len)
+		{
+			return string;
+		}
+
+		char[] out = new char[i + (len - i) * MAX_ESCAPED_LENGTH];
+		string.getChars(0, i, out, 0);
+		int end = escape(string, i, len, out, i);
+		return new String(out, 0, end);
+	}
+
+	/**
+	 * @param sb the buffer
+	 * @param text the text to escape
+	 */
+	public static void append(StringBuilder sb, CharSequence text)
+	{
+		int len = text.length();
+		char[] out = new char[len * MAX_ESCAPED_LENGTH];
+		sb.append(out, 0, escape(text, 0, len, out, 0));
+	}
+
+	/**
+	 * Write the escaped text into a buffer large enough for <tt>MAX_ESCAPED_LENGTH</tt> chars per char.
+	 * 
+	 * @return the position following the last char written
+	 */
+	private static int escape(CharSequence text, int start, int end, char[] out, int pos)
+	{
+		for (int i = start; i < end; i++)
+		{
+			char c = text.charAt(i);
+			if (c < 128)
+			{
+				char[] entity = ASCII_ENTITIES[c];
+				if (entity == null)
+				{
+					out[pos++] = c;
+				}
+				else
+				{
+					System.arraycopy(entity, 0, out, pos, entity.length);
+					pos += entity.length;
+				}
+				continue;
+			}
+
+			char[] entity = namedEntity(c);
+			if (entity != null)
+			{
+				System.arraycopy(entity, 0, out, pos, entity.length);
+				pos += entity.length;
+				continue;
+			}
+
+			// &#nnnnn; with the digits written from the right, c >= 128 has at least three
+			int digits = c >= 10000 ? 5 : c >= 1000 ? 4 : 3;
+			out[pos] = '&';
+			out[pos + 1] = '#';
+			int value = c;
+			for (int d = pos + 1 + digits; d > pos + 1; d--)
+			{
+				out[d] = (char) ('0' + value % 10);
+				value /= 10;
+			}
+			pos += 2 + digits;
+			out[pos++] = ';';
+		}
+		return pos;
+	}
+
+	private static boolean needsEscaping(char c)
+	{
+		return c < 128 ? ASCII_ENTITIES[c] != null : true;
+	}
+
+	private static char[] namedEntity(char c)
+	{
+		switch (c)
+		{
+		case '\u20AC': return EURO;
+		case '\u00AB': return LAQUO;
+		case '\u00BB': return RAQUO;
+		case '\u00A0': return NBSP;
+		default: return null;
+		}
+	}
+}
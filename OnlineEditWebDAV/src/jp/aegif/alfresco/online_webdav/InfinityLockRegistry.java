@@ -0,0 +1,193 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.repo.webdav.WebDAV;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * In-memory index of the folders holding a depth infinity lock.
+ * <p>
+ * Almost no folder is ever locked, yet every lock check of a document looks for a lock on each of
+ * its ancestors. With the index, {@link LockHierarchyCache} answers straight away when no folder is
+ * locked, and otherwise only reads the lock of the ancestors found in the index.
+ * <p>
+ * The index is only filled from the lock store, through {@link #refresh(NodeRef)} called by the
+ * methods and components that change a lock, and drops locks once they expire. It can only be
+ * trusted when every lock change goes through it, so it is disabled by default and may only be
+ * enabled together with {@link ShardedLockStore}. That store lives in memory and starts empty, as
+ * does the index, so nothing has to be rebuilt on startup. The repository lock store, the default,
+ * cannot be listed: the WebDAV locks of Alfresco 4.2 are ephemeral, kept by the lock service rather
+ * than in the <tt>cm:lockable</tt> properties, so neither a search nor a property policy sees them,
+ * and other servlets and cluster members take locks without telling the index. Enabled with that
+ * store, the index stays inactive and lock checks walk every ancestor as before.
+ */
+public class InfinityLockRegistry implements InfinityLockRegistryMBean,
+		NodeServicePolicies.BeforeDeleteNodePolicy
+{
+	private static Log logger = LogFactory.getLog(InfinityLockRegistry.class);
+
+	private boolean m_enabled;
+	private PolicyComponent m_policyComponent;
+	private LockStore m_lockStore;
+
+	// lock expiry, by locked folder
+	private final ConcurrentMap<NodeRef, Long> m_locks = new ConcurrentHashMap<NodeRef, Long>();
+	private volatile boolean m_ready;
+
+	/**
+	 * @param enabled true to index the depth infinity locks, only supported with a local lock store
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		m_enabled = enabled;
+	}
+
+	/**
+	 * @param policyComponent the policy component, used to drop deleted folders
+	 */
+	public void setPolicyComponent(PolicyComponent policyComponent)
+	{
+		m_policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param lockStore the store holding the locks
+	 */
+	public void setLockStore(LockStore lockStore)
+	{
+		m_lockStore = lockStore;
+	}
+
+	public void init()
+	{
+		if (!m_enabled)
+		{
+			return;
+		}
+		if (!m_lockStore.isLocal())
+		{
+			logger.warn("The depth infinity lock registry requires a local lock store, lock checks walk every ancestor");
+			return;
+		}
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+
+		// A local store starts empty and sees every lock change
+		m_ready = true;
+	}
+
+	public void destroy()
+	{
+		m_ready = false;
+		m_locks.clear();
+	}
+
+	public boolean isReady()
+	{
+		return m_ready;
+	}
+
+	/**
+	 * @return true if no folder currently holds a depth infinity lock
+	 */
+	public boolean isEmpty()
+	{
+		if (m_locks.isEmpty())
+		{
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		for (Long expiresAt : m_locks.values())
+		{
+			if (now < expiresAt.longValue())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param nodeRef a folder
+	 * @return true if the folder holds a depth infinity lock that has not expired yet
+	 */
+	public boolean contains(NodeRef nodeRef)
+	{
+		Long expiresAt = m_locks.get(nodeRef);
+		if (expiresAt == null)
+		{
+			return false;
+		}
+		if (System.currentTimeMillis() >= expiresAt.longValue())
+		{
+			m_locks.remove(nodeRef, expiresAt);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the lock of a node from the lock store and update its registration.
+	 * 
+	 * @param nodeRef the node whose lock has changed
+	 */
+	public void refresh(final NodeRef nodeRef)
+	{
+		if (!m_ready)
+		{
+			return;
+		}
+		LockInfo lockInfo = AuthenticationUtil.runAsSystem(new RunAsWork<LockInfo>()
+		{
+			public LockInfo doWork() throws Exception
+			{
+				return m_lockStore.getLockInfo(nodeRef);
+			}
+		});
+		update(nodeRef, lockInfo);
+	}
+
+	/**
+	 * @param nodeRef the node to drop from the registry
+	 */
+	public void remove(NodeRef nodeRef)
+	{
+		m_locks.remove(nodeRef);
+	}
+
+	private void update(NodeRef nodeRef, LockInfo lockInfo)
+	{
+		if (lockInfo != null && lockInfo.isLocked() && !lockInfo.isExpired() && WebDAV.INFINITY.equals(lockInfo.getDepth()))
+		{
+			Date expires = lockInfo.getExpires();
+			m_locks.put(nodeRef, Long.valueOf(expires == null ? Long.MAX_VALUE : expires.getTime()));
+		}
+		else
+		{
+			m_locks.remove(nodeRef);
+		}
+	}
+
+	public void beforeDeleteNode(NodeRef nodeRef)
+	{
+		remove(nodeRef);
+	}
+
+	public int getSize()
+	{
+		return m_locks.size();
+	}
+}
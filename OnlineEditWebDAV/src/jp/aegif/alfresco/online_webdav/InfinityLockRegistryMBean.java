@@ -0,0 +1,17 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link InfinityLockRegistry}
+ */
+public interface InfinityLockRegistryMBean
+{
+	/**
+	 * @return true if the registry is enabled with a local lock store, so that lock checks can rely on it
+	 */
+	public boolean isReady();
+
+	/**
+	 * @return the number of nodes currently registered as holding a depth infinity lock
+	 */
+	public int getSize();
+}
@@ -0,0 +1,336 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.repo.webdav.WebDAV;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+
+/**
+ * Shared cache of the ancestor chain walked to find depth infinity locks.
+ * <p>
+ * A node without a lock of its own is locked by the nearest ancestor holding a depth infinity
+ * lock (RFC 2518 8.10.4). Finding it reads the primary parent and the lock of every ancestor, for
+ * every lock check of PROPFIND, LOCK and PUT. This cache keeps the child to parent links and, per
+ * folder, the depth infinity lock it holds, if any, across requests.
+ * <p>
+ * Parent links are dropped when a node is moved or deleted. Folder lock states are dropped by
+ * {@link #invalidateLock(NodeRef)}, called by the LOCK and UNLOCK methods, when the node is moved or
+ * deleted and when a cached lock has expired. These are dropped at once and again after the commit,
+ * as a concurrent request may read the state from before the commit in between. Both expire after
+ * <tt>timeToLiveSeconds</tt>, which bounds how long locks and moves made through other servlets or
+ * cluster members go unnoticed.
+ * <p>
+ * With an {@link InfinityLockRegistry} enabled over a local lock store, a check returns straight
+ * away when no folder is locked, and otherwise only reads the lock of the ancestors found in the
+ * registry.
+ * <p>
+ * The caller is expected to run as the system user, as the lock checks did before.
+ */
+public class LockHierarchyCache implements LockHierarchyCacheMBean,
+		NodeServicePolicies.OnMoveNodePolicy,
+		NodeServicePolicies.BeforeDeleteNodePolicy
+{
+	// Marks a node without a parent folder
+	private static final NodeRef NO_PARENT = new NodeRef("none", "none", "none");
+
+	private PolicyComponent m_policyComponent;
+	private NodeService m_nodeService;
+	private LockStore m_lockStore;
+	private InfinityLockRegistry m_lockRegistry;
+
+	private int m_maxEntries = 20000;
+	private long m_timeToLiveMillis = 30000L;
+
+	private final ConcurrentMap<NodeRef, Parent> m_parents = new ConcurrentHashMap<NodeRef, Parent>();
+	private final ConcurrentMap<NodeRef, FolderLock> m_folderLocks = new ConcurrentHashMap<NodeRef, FolderLock>();
+
+	private final AtomicLong m_hitCount = new AtomicLong();
+	private final AtomicLong m_missCount = new AtomicLong();
+	private final AtomicLong m_invalidationCount = new AtomicLong();
+	private final AtomicLong m_unlockedByIndexCount = new AtomicLong();
+
+	private final AfterCommitInvalidator<NodeRef> m_lockInvalidator = new AfterCommitInvalidator<NodeRef>(
+			new AfterCommitInvalidator.Target<NodeRef>()
+			{
+				public void invalidate(NodeRef nodeRef)
+				{
+					dropLock(nodeRef);
+				}
+			});
+	private final AfterCommitInvalidator<NodeRef> m_nodeInvalidator = new AfterCommitInvalidator<NodeRef>(
+			new AfterCommitInvalidator.Target<NodeRef>()
+			{
+				public void invalidate(NodeRef nodeRef)
+				{
+					m_parents.remove(nodeRef);
+					dropLock(nodeRef);
+				}
+			});
+
+	/**
+	 * @param policyComponent the policy component, used to bind the invalidation behaviours
+	 */
+	public void setPolicyComponent(PolicyComponent policyComponent)
+	{
+		m_policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param nodeService the node service used to read primary parents
+	 */
+	public void setNodeService(NodeService nodeService)
+	{
+		m_nodeService = nodeService;
+	}
+
+	/**
+	 * @param lockStore the store used to read folder locks
+	 */
+	public void setLockStore(LockStore lockStore)
+	{
+		m_lockStore = lockStore;
+	}
+
+	/**
+	 * @param lockRegistry the index of the folders holding a depth infinity lock, optional
+	 */
+	public void setLockRegistry(InfinityLockRegistry lockRegistry)
+	{
+		m_lockRegistry = lockRegistry;
+	}
+
+	/**
+	 * @param maxEntries the maximum number of cached parent links, and of cached folder lock states
+	 */
+	public void setMaxEntries(int maxEntries)
+	{
+		m_maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param timeToLiveSeconds how long a parent link and the lock state of a folder are kept
+	 */
+	public void setTimeToLiveSeconds(long timeToLiveSeconds)
+	{
+		m_timeToLiveMillis = timeToLiveSeconds * 1000L;
+	}
+
+	public void init()
+	{
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "onMoveNode", NotificationFrequency.EVERY_EVENT));
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+	}
+
+	/**
+	 * Find the depth infinity lock a node inherits from its ancestors.
+	 * 
+	 * @param nodeRef the node
+	 * @return a copy of the lock of the nearest ancestor locked with depth infinity, or null
+	 */
+	public LockInfo getInheritedLock(NodeRef nodeRef)
+	{
+		boolean indexed = m_lockRegistry != null && m_lockRegistry.isReady();
+		if (indexed && m_lockRegistry.isEmpty())
+		{
+			// No folder is locked at all
+			m_unlockedByIndexCount.incrementAndGet();
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		NodeRef node = nodeRef;
+		while (true)
+		{
+			NodeRef parent = getParent(node, now);
+			if (parent == null)
+			{
+				return null;
+			}
+			// Only read the lock of folders known to hold a depth infinity lock
+			if (!indexed || m_lockRegistry.contains(parent))
+			{
+				LockInfo lockInfo = getFolderLock(parent, now);
+				if (lockInfo != null)
+				{
+					// The cached lock is shared by all requests, callers get their own copy
+					return ShardedLockStore.copy(lockInfo);
+				}
+			}
+			node = parent;
+		}
+	}
+
+	private NodeRef getParent(NodeRef node, long now)
+	{
+		Parent cached = m_parents.get(node);
+		if (cached != null && now < cached.expiresAt)
+		{
+			m_hitCount.incrementAndGet();
+			return cached.parentRef == NO_PARENT ? null : cached.parentRef;
+		}
+		m_missCount.incrementAndGet();
+
+		ChildAssociationRef childAssocRef = m_nodeService.getPrimaryParent(node);
+		NodeRef parent = childAssocRef.getParentRef();
+		if (!childAssocRef.getTypeQName().equals(ContentModel.ASSOC_CONTAINS))
+		{
+			parent = null;
+		}
+
+		if (m_maxEntries > 0 && m_timeToLiveMillis > 0)
+		{
+			if (m_parents.size() >= m_maxEntries)
+			{
+				m_parents.clear();
+			}
+			m_parents.put(node, new Parent(parent == null ? NO_PARENT : parent, now + m_timeToLiveMillis));
+		}
+		return parent;
+	}
+
+	private LockInfo getFolderLock(NodeRef folder, long now)
+	{
+		FolderLock folderLock = m_folderLocks.get(folder);
+		if (folderLock != null && now < folderLock.expiresAt
+				&& (folderLock.lockInfo == null || !folderLock.lockInfo.isExpired()))
+		{
+			m_hitCount.incrementAndGet();
+			return folderLock.lockInfo;
+		}
+		m_missCount.incrementAndGet();
+
+		LockInfo lockInfo = m_lockStore.getLockInfo(folder);
+		if (lockInfo != null && !(lockInfo.isLocked() && WebDAV.INFINITY.equals(lockInfo.getDepth())))
+		{
+			// Not locked, or the lock does not apply to the descendants
+			lockInfo = null;
+		}
+
+		if (m_maxEntries > 0 && m_timeToLiveMillis > 0)
+		{
+			if (m_folderLocks.size() >= m_maxEntries)
+			{
+				m_folderLocks.clear();
+			}
+			m_folderLocks.put(folder, new FolderLock(lockInfo, now + m_timeToLiveMillis));
+		}
+		return lockInfo;
+	}
+
+	/**
+	 * Drop the cached lock state of a node, after it has been locked, refreshed or unlocked.
+	 * 
+	 * @param nodeRef the node
+	 */
+	public void invalidateLock(NodeRef nodeRef)
+	{
+		m_lockInvalidator.invalidate(nodeRef);
+		if (m_lockRegistry != null)
+		{
+			m_lockRegistry.refresh(nodeRef);
+		}
+	}
+
+	private void dropLock(NodeRef nodeRef)
+	{
+		if (m_folderLocks.remove(nodeRef) != null)
+		{
+			m_invalidationCount.incrementAndGet();
+		}
+	}
+
+	public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef)
+	{
+		m_nodeInvalidator.invalidate(oldChildAssocRef.getChildRef());
+		m_nodeInvalidator.invalidate(newChildAssocRef.getChildRef());
+	}
+
+	public void beforeDeleteNode(NodeRef nodeRef)
+	{
+		m_nodeInvalidator.invalidate(nodeRef);
+	}
+
+	public void clear()
+	{
+		m_parents.clear();
+		m_folderLocks.clear();
+	}
+
+	public long getHitCount()
+	{
+		return m_hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return m_missCount.get();
+	}
+
+	public long getInvalidationCount()
+	{
+		return m_invalidationCount.get();
+	}
+
+	public long getUnlockedByIndexCount()
+	{
+		return m_unlockedByIndexCount.get();
+	}
+
+	public int getParentCacheSize()
+	{
+		return m_parents.size();
+	}
+
+	public int getFolderLockCacheSize()
+	{
+		return m_folderLocks.size();
+	}
+
+	public int getMaxEntries()
+	{
+		return m_maxEntries;
+	}
+
+	public long getTimeToLiveSeconds()
+	{
+		return m_timeToLiveMillis / 1000L;
+	}
+
+	private static final class Parent
+	{
+		// the primary parent folder, or NO_PARENT
+		private final NodeRef parentRef;
+		private final long expiresAt;
+
+		private Parent(NodeRef parentRef, long expiresAt)
+		{
+			this.parentRef = parentRef;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final class FolderLock
+	{
+		// the depth infinity lock held by the folder, or null
+		private final LockInfo lockInfo;
+		private final long expiresAt;
+
+		private FolderLock(LockInfo lockInfo, long expiresAt)
+		{
+			this.lockInfo = lockInfo;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
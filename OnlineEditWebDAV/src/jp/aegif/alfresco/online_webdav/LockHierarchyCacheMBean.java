@@ -0,0 +1,37 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link LockHierarchyCache}
+ */
+public interface LockHierarchyCacheMBean
+{
+	/**
+	 * @return the number of parent links and folder lock states read from the cache
+	 */
+	public long getHitCount();
+
+	/**
+	 * @return the number of parent links and folder lock states read from the repository
+	 */
+	public long getMissCount();
+
+	/**
+	 * @return the number of folder lock states dropped by lock changes, moves and deletes
+	 */
+	public long getInvalidationCount();
+
+	/**
+	 * @return the number of lock checks answered by the depth infinity lock registry alone
+	 */
+	public long getUnlockedByIndexCount();
+
+	public int getParentCacheSize();
+
+	public int getFolderLockCacheSize();
+
+	public int getMaxEntries();
+
+	public long getTimeToLiveSeconds();
+
+	public void clear();
+}
@@ -105,6 +105,23 @@ public class LockMethod extends WebDAVMethod
 		return m_timeoutDuration;
 	}
 
+	/**
+	 * A lock refresh runs read-only when the locks are held in memory or refreshes are coalesced,
+	 * the repository is only written when the refresh can not be absorbed.
+	 * 
+	 * @see org.alfresco.repo.webdav.WebDAVMethod#isReadOnly()
+	 */
+	@Override
+	protected boolean isReadOnly()
+	{
+		if (!hasLockToken())
+		{
+			return false;
+		}
+		LockRefreshCoalescer coalescer = getDAVHelper().getLockRefreshCoalescer();
+		return getLockStore().isLocal() || (coalescer != null && coalescer.isEnabled());
+	}
+
 	/**
 	 * Parse the request headers
 	 * 
@@ -259,7 +276,7 @@ public class LockMethod extends WebDAVMethod
 		FileInfo lockNodeInfo = null;
 
 		try {
-			lockNodeInfo = getDAVHelper().getFileInfoFromRequestPath(m_request);
+			lockNodeInfo = getNodeContext().getFileInfo();
 		}
 		catch(FileNotFoundException e) {
 			throw new WebDAVServerException(HttpServletResponse.SC_NOT_FOUND);
@@ -336,7 +353,8 @@ public class LockMethod extends WebDAVMethod
 		// Store the owner of this lock
 		lockInfo.setOwner(userName);
 		// Lock the node
-		getDAVLockService().lock(lockNode.getNodeRef(), lockInfo);
+		getLockStore().lock(lockNode.getNodeRef(), lockInfo);
+		invalidateLockState(lockNode.getNodeRef());
 
 		if (logger.isDebugEnabled())
 		{
@@ -355,8 +373,40 @@ public class LockMethod extends WebDAVMethod
 	{
 		if (this.createExclusive)
 		{
-			// Update the expiry for the lock
-			lockInfo.setTimeoutSeconds(getLockTimeout());
+			final NodeRef nodeRef = lockNode.getNodeRef();
+			LockRefreshCoalescer coalescer = getDAVHelper().getLockRefreshCoalescer();
+			// Only a lock held by the node itself can be written behind, an inherited lock is not refreshed in the store
+			boolean direct = lockInfo == getNodeContext().getLockInfo();
+			if (direct && coalescer != null && coalescer.refresh(nodeRef, lockInfo, getLockTimeout()))
+			{
+				// Update the expiry for the response, the lock store is updated by the next flush
+				lockInfo.setTimeoutSeconds(getLockTimeout());
+				invalidateLockState(nodeRef, false);
+				return;
+			}
+
+			// Update the expiry for the lock, an inherited lock is left as it is
+			if (direct)
+			{
+				lockInfo.setTimeoutSeconds(getLockTimeout());
+				if (isReadOnly() && !getLockStore().isLocal())
+				{
+					RetryingTransactionCallback<Void> work = new RetryingTransactionCallback<Void>()
+					{
+						public Void execute() throws Throwable
+						{
+							getLockStore().lock(nodeRef, lockInfo);
+							return null;
+						}
+					};
+					getTransactionService().getRetryingTransactionHelper().doInTransaction(work, false, true);
+				}
+				else
+				{
+					getLockStore().lock(nodeRef, lockInfo);
+				}
+				invalidateLockState(nodeRef);
+			}
 		}
 	}
 
@@ -0,0 +1,358 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Scheduled cleanup of orphaned zero-byte placeholder nodes.
+ * <p>
+ * Placeholders created by LOCK on a missing resource (<tt>cm:webdavNoContent</tt>) are otherwise
+ * only deleted when the client sends the UNLOCK. Every <tt>intervalSeconds</tt> the reaper finds up
+ * to <tt>maxNodes</tt> placeholders and deletes them <tt>batchSize</tt> at a time, each batch in its
+ * own transaction so that a failure only rolls back its batch. A placeholder is deleted once its
+ * WebDAV lock has expired or been removed and it is older than <tt>noContentMaxAgeMinutes</tt>.
+ * What was deleted is logged and exposed over JMX.
+ * <p>
+ * Each run holds a cluster wide job lock, as the cleanup jobs of the repository do, so that only
+ * one cluster member reaps at a time; a member that cannot get the lock skips its run.
+ * <p>
+ * Expired locks are not looked for. The WebDAV locks of Alfresco 4.2 are ephemeral, held by the lock
+ * service which cannot list them, so a search only finds the persistent locks of other subsystems,
+ * which are not ours to remove; an expired WebDAV lock is ignored by the lock checks and replaced
+ * by the next LOCK. A local lock store drops its expired locks itself.
+ */
+public class LockReaper implements LockReaperMBean
+{
+	private static Log logger = LogFactory.getLog(LockReaper.class);
+
+	private static final String NO_CONTENT_QUERY = "ASPECT:\"cm:webdavNoContent\"";
+
+	private static final QName JOB_LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "OnlineWebDAVLockReaper");
+	private static final long JOB_LOCK_TTL = 300000L;
+
+	private TransactionService m_transactionService;
+	private SearchService m_searchService;
+	private NodeService m_nodeService;
+	private LockStore m_lockStore;
+	private JobLockService m_jobLockService;
+
+	private boolean m_enabled = true;
+	private long m_intervalSeconds = 900L;
+	private int m_batchSize = 50;
+	private int m_maxNodes = 5000;
+	private long m_noContentMaxAgeMillis = 3600000L;
+
+	private ScheduledExecutorService m_scheduler;
+
+	private final AtomicLong m_runCount = new AtomicLong();
+	private final AtomicLong m_noContentNodeCount = new AtomicLong();
+	private final AtomicLong m_failureCount = new AtomicLong();
+	private volatile String m_lastRun = "never";
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		m_transactionService = transactionService;
+	}
+
+	public void setSearchService(SearchService searchService)
+	{
+		m_searchService = searchService;
+	}
+
+	/**
+	 * @param nodeService the node service, without permission checks
+	 */
+	public void setNodeService(NodeService nodeService)
+	{
+		m_nodeService = nodeService;
+	}
+
+	/**
+	 * @param lockStore the store holding the locks
+	 */
+	public void setLockStore(LockStore lockStore)
+	{
+		m_lockStore = lockStore;
+	}
+
+	/**
+	 * @param jobLockService the service used to run on one cluster member at a time
+	 */
+	public void setJobLockService(JobLockService jobLockService)
+	{
+		m_jobLockService = jobLockService;
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		m_enabled = enabled;
+	}
+
+	/**
+	 * @param intervalSeconds the delay between two runs, the first run happens after one interval
+	 */
+	public void setIntervalSeconds(long intervalSeconds)
+	{
+		m_intervalSeconds = intervalSeconds;
+	}
+
+	/**
+	 * @param batchSize the number of nodes cleaned up in one transaction
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		m_batchSize = batchSize;
+	}
+
+	/**
+	 * @param maxNodes the maximum number of placeholders looked at by one run
+	 */
+	public void setMaxNodes(int maxNodes)
+	{
+		m_maxNodes = maxNodes;
+	}
+
+	/**
+	 * @param noContentMaxAgeMinutes the age after which an unlocked placeholder is deleted
+	 */
+	public void setNoContentMaxAgeMinutes(long noContentMaxAgeMinutes)
+	{
+		m_noContentMaxAgeMillis = noContentMaxAgeMinutes * 60000L;
+	}
+
+	public void init()
+	{
+		if (!m_enabled || m_intervalSeconds <= 0)
+		{
+			return;
+		}
+		m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "OnlineWebDAV-lock-reaper");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		m_scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					reap();
+				}
+				catch (Throwable e)
+				{
+					logger.warn("Deleting orphaned WebDAV placeholders failed", e);
+				}
+			}
+		}, m_intervalSeconds, m_intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public void destroy()
+	{
+		if (m_scheduler != null)
+		{
+			m_scheduler.shutdownNow();
+			m_scheduler = null;
+		}
+	}
+
+	public void reap()
+	{
+		String lockToken;
+		try
+		{
+			lockToken = m_jobLockService.getLock(JOB_LOCK_QNAME, JOB_LOCK_TTL);
+		}
+		catch (LockAcquisitionException e)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Lock reaper already running on another cluster member, skipping this run");
+			return;
+		}
+		try
+		{
+			reap(lockToken);
+		}
+		finally
+		{
+			m_jobLockService.releaseLock(lockToken, JOB_LOCK_QNAME);
+		}
+	}
+
+	private void reap(String lockToken)
+	{
+		long start = System.currentTimeMillis();
+		int noContentNodes = 0;
+		int failures = 0;
+
+		List<NodeRef> placeholders = find(NO_CONTENT_QUERY);
+		for (int i = 0; i < placeholders.size(); i += m_batchSize)
+		{
+			m_jobLockService.refreshLock(lockToken, JOB_LOCK_QNAME, JOB_LOCK_TTL);
+			final List<NodeRef> batch = placeholders.subList(i, Math.min(i + m_batchSize, placeholders.size()));
+			try
+			{
+				noContentNodes += inTransaction(new RetryingTransactionCallback<Integer>()
+				{
+					public Integer execute() throws Throwable
+					{
+						return deleteOrphanedPlaceholders(batch);
+					}
+				});
+			}
+			catch (RuntimeException e)
+			{
+				failures += batch.size();
+				logger.warn("Failed to delete " + batch.size() + " zero-byte placeholder nodes", e);
+			}
+		}
+
+		m_runCount.incrementAndGet();
+		m_noContentNodeCount.addAndGet(noContentNodes);
+		m_failureCount.addAndGet(failures);
+		m_lastRun = new Date(start) + ": " + placeholders.size() + " placeholders, " + noContentNodes + " deleted, "
+				+ failures + " failed, " + (System.currentTimeMillis() - start) + "ms";
+
+		if (noContentNodes > 0 || failures > 0)
+		{
+			logger.info("Lock reaper: " + m_lastRun);
+		}
+		else if (logger.isDebugEnabled())
+		{
+			logger.debug("Lock reaper: " + m_lastRun);
+		}
+	}
+
+	private int deleteOrphanedPlaceholders(List<NodeRef> batch)
+	{
+		long createdBefore = System.currentTimeMillis() - m_noContentMaxAgeMillis;
+		int deleted = 0;
+		for (NodeRef nodeRef : batch)
+		{
+			if (!m_nodeService.exists(nodeRef) || !m_nodeService.hasAspect(nodeRef, ContentModel.ASPECT_WEBDAV_NO_CONTENT))
+			{
+				continue;
+			}
+			Date created = (Date) m_nodeService.getProperty(nodeRef, ContentModel.PROP_CREATED);
+			if (created != null && created.getTime() > createdBefore)
+			{
+				// Still within the time the client has to PUT the content
+				continue;
+			}
+			LockInfo lockInfo = m_lockStore.getLockInfo(nodeRef);
+			if (lockInfo != null && lockInfo.isLocked() && !lockInfo.isExpired())
+			{
+				continue;
+			}
+			// Same cleanup as an UNLOCK without a PUT
+			m_nodeService.removeAspect(nodeRef, ContentModel.ASPECT_WEBDAV_NO_CONTENT);
+			m_nodeService.deleteNode(nodeRef);
+			deleted++;
+			if (logger.isDebugEnabled())
+				logger.debug("Deleted zero-byte placeholder " + nodeRef);
+		}
+		return deleted;
+	}
+
+	private int inTransaction(final RetryingTransactionCallback<Integer> work)
+	{
+		return AuthenticationUtil.runAsSystem(new RunAsWork<Integer>()
+		{
+			public Integer doWork() throws Exception
+			{
+				RetryingTransactionHelper txnHelper = m_transactionService.getRetryingTransactionHelper();
+				return txnHelper.doInTransaction(work, false, true);
+			}
+		});
+	}
+
+	private List<NodeRef> find(final String query)
+	{
+		return AuthenticationUtil.runAsSystem(new RunAsWork<List<NodeRef>>()
+		{
+			public List<NodeRef> doWork() throws Exception
+			{
+				SearchParameters sp = new SearchParameters();
+				sp.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+				sp.setLanguage(SearchService.LANGUAGE_LUCENE);
+				sp.setQuery(query);
+				sp.setMaxItems(m_maxNodes);
+
+				ResultSet results = null;
+				try
+				{
+					results = m_searchService.query(sp);
+					return new ArrayList<NodeRef>(results.getNodeRefs());
+				}
+				finally
+				{
+					if (results != null)
+					{
+						results.close();
+					}
+				}
+			}
+		});
+	}
+
+	public boolean isEnabled()
+	{
+		return m_enabled;
+	}
+
+	public long getIntervalSeconds()
+	{
+		return m_intervalSeconds;
+	}
+
+	public long getRunCount()
+	{
+		return m_runCount.get();
+	}
+
+	public long getNoContentNodeCount()
+	{
+		return m_noContentNodeCount.get();
+	}
+
+	public long getFailureCount()
+	{
+		return m_failureCount.get();
+	}
+
+	public String getLastRun()
+	{
+		return m_lastRun;
+	}
+}
@@ -0,0 +1,33 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link LockReaper}
+ */
+public interface LockReaperMBean
+{
+	public boolean isEnabled();
+
+	public long getIntervalSeconds();
+
+	public long getRunCount();
+
+	/**
+	 * @return the number of zero-byte placeholder nodes deleted since startup
+	 */
+	public long getNoContentNodeCount();
+
+	/**
+	 * @return the number of nodes that could not be cleaned up since startup
+	 */
+	public long getFailureCount();
+
+	/**
+	 * @return a summary of the last run
+	 */
+	public String getLastRun();
+
+	/**
+	 * Run the reaper now, in the calling thread.
+	 */
+	public void reap();
+}
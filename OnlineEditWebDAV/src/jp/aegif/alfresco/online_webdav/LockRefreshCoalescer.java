@@ -0,0 +1,344 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Write-behind table of lock refreshes.
+ * <p>
+ * Office refreshes the lock of every open document periodically. Instead of writing each refresh to
+ * the lock store, {@link #refresh(NodeRef, LockInfo, int)} records the new expiry in memory and a
+ * background task writes the recorded expiries every <tt>flushIntervalSeconds</tt>,
+ * <tt>batchSize</tt> locks per transaction. Each batch is written as the owner of its locks, as the
+ * lock service only lets the owner of an ephemeral lock refresh it.
+ * <p>
+ * A refresh is only absorbed if the stored lock remains valid for more than two flush intervals, so
+ * that the lock can not expire in the store before its new expiry has been written, and if the new
+ * expiry is at most one flush interval past the stored one. Other refreshes are written at once.
+ * Until a flush the lock checks, the {@link LockHierarchyCache} and the {@link InfinityLockRegistry}
+ * see the stored, shorter but still valid, expiry; each lock written by a flush is invalidated in
+ * them.
+ * <p>
+ * If the server stops before a flush, the absorbed refreshes are lost and the lock expires at its
+ * stored expiry, at most one flush interval earlier than the client was told. Only clients
+ * refreshing more often than every flush interval have refreshes absorbed. A flush only extends a
+ * lock still held by the same owner, and never shortens it.
+ */
+public class LockRefreshCoalescer implements LockRefreshCoalescerMBean
+{
+	private static Log logger = LogFactory.getLog(LockRefreshCoalescer.class);
+
+	private TransactionService m_transactionService;
+	private LockStore m_lockStore;
+	private LockHierarchyCache m_lockHierarchyCache;
+
+	private boolean m_enabled = true;
+	private long m_flushIntervalMillis = 60000L;
+	private int m_batchSize = 100;
+
+	private final ConcurrentMap<NodeRef, PendingRefresh> m_pending = new ConcurrentHashMap<NodeRef, PendingRefresh>();
+
+	private ScheduledExecutorService m_flusher;
+
+	private final AtomicLong m_absorbedCount = new AtomicLong();
+	private final AtomicLong m_flushedCount = new AtomicLong();
+	private final AtomicLong m_discardedCount = new AtomicLong();
+
+	public void setTransactionService(TransactionService transactionService)
+	{
+		m_transactionService = transactionService;
+	}
+
+	/**
+	 * @param lockStore the store the refreshes are written to
+	 */
+	public void setLockStore(LockStore lockStore)
+	{
+		m_lockStore = lockStore;
+	}
+
+	/**
+	 * @param lockHierarchyCache the cache told about the written locks, optional
+	 */
+	public void setLockHierarchyCache(LockHierarchyCache lockHierarchyCache)
+	{
+		m_lockHierarchyCache = lockHierarchyCache;
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		m_enabled = enabled;
+	}
+
+	/**
+	 * @param flushIntervalSeconds the interval between two writes of the pending refreshes
+	 */
+	public void setFlushIntervalSeconds(long flushIntervalSeconds)
+	{
+		m_flushIntervalMillis = flushIntervalSeconds * 1000L;
+	}
+
+	/**
+	 * @param batchSize the number of locks written in one transaction
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		m_batchSize = batchSize;
+	}
+
+	public void init()
+	{
+		if (!m_enabled || m_flushIntervalMillis <= 0)
+		{
+			return;
+		}
+		m_flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "OnlineWebDAV-lock-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		m_flusher.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				catch (Throwable e)
+				{
+					logger.warn("Writing lock refreshes failed", e);
+				}
+			}
+		}, m_flushIntervalMillis, m_flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the flusher and write what is still pending.
+	 */
+	public void destroy()
+	{
+		if (m_flusher != null)
+		{
+			m_flusher.shutdownNow();
+			m_flusher = null;
+			try
+			{
+				flush();
+			}
+			catch (Throwable e)
+			{
+				logger.warn("Writing lock refreshes on shutdown failed, " + m_pending.size() + " locks may expire early", e);
+			}
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return m_flusher != null;
+	}
+
+	/**
+	 * Record a lock refresh, if it can safely be written later.
+	 * 
+	 * @param nodeRef the locked node
+	 * @param lockInfo the lock as currently stored
+	 * @param timeoutSeconds the new timeout of the lock
+	 * @return true if the refresh will be written by a later flush, false if the caller must write it
+	 *         now, always false for a local lock store which is cheap to write and when the new expiry
+	 *         is more than one flush interval past the stored one
+	 */
+	public boolean refresh(NodeRef nodeRef, LockInfo lockInfo, int timeoutSeconds)
+	{
+		if (m_flusher == null || timeoutSeconds <= 0 || m_lockStore.isLocal())
+		{
+			return false;
+		}
+		Date stored = lockInfo.getExpires();
+		String owner = lockInfo.getOwner();
+		long now = System.currentTimeMillis();
+		long expiresAt = now + timeoutSeconds * 1000L;
+		long margin = 2 * m_flushIntervalMillis;
+		if (stored == null || owner == null || stored.getTime() - now <= margin || timeoutSeconds * 1000L <= margin)
+		{
+			return false;
+		}
+		if (expiresAt - stored.getTime() > m_flushIntervalMillis)
+		{
+			// Losing this refresh in a crash would expire the lock more than one flush interval early
+			return false;
+		}
+		m_pending.put(nodeRef, new PendingRefresh(owner, expiresAt));
+		m_absorbedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Drop the pending refresh of a node, e.g. after it has been unlocked or its lock written.
+	 * 
+	 * @param nodeRef the node
+	 */
+	public void forget(NodeRef nodeRef)
+	{
+		m_pending.remove(nodeRef);
+	}
+
+	public void flush()
+	{
+		if (m_pending.isEmpty())
+		{
+			return;
+		}
+		// The lock service only lets the owner of a lock refresh it
+		Map<String, List<Map.Entry<NodeRef, PendingRefresh>>> byOwner = new LinkedHashMap<String, List<Map.Entry<NodeRef, PendingRefresh>>>();
+		int total = 0;
+		for (Map.Entry<NodeRef, PendingRefresh> entry : m_pending.entrySet())
+		{
+			List<Map.Entry<NodeRef, PendingRefresh>> locks = byOwner.get(entry.getValue().owner);
+			if (locks == null)
+			{
+				locks = new ArrayList<Map.Entry<NodeRef, PendingRefresh>>();
+				byOwner.put(entry.getValue().owner, locks);
+			}
+			locks.add(entry);
+			total++;
+		}
+		int flushed = 0;
+		for (Map.Entry<String, List<Map.Entry<NodeRef, PendingRefresh>>> owner : byOwner.entrySet())
+		{
+			List<Map.Entry<NodeRef, PendingRefresh>> pending = owner.getValue();
+			for (int i = 0; i < pending.size(); i += m_batchSize)
+			{
+				List<Map.Entry<NodeRef, PendingRefresh>> batch = pending.subList(i, Math.min(i + m_batchSize, pending.size()));
+				try
+				{
+					flushed += write(owner.getKey(), batch);
+					// Refreshes recorded while writing stay for the next flush
+					for (Map.Entry<NodeRef, PendingRefresh> entry : batch)
+					{
+						m_pending.remove(entry.getKey(), entry.getValue());
+					}
+				}
+				catch (RuntimeException e)
+				{
+					logger.warn("Failed to write " + batch.size() + " lock refreshes of " + owner.getKey() + ", retrying with the next flush", e);
+				}
+			}
+		}
+		m_flushedCount.addAndGet(flushed);
+		if (logger.isDebugEnabled())
+			logger.debug("Wrote " + flushed + " of " + total + " lock refreshes");
+	}
+
+	private int write(String owner, final List<Map.Entry<NodeRef, PendingRefresh>> batch)
+	{
+		return AuthenticationUtil.runAs(new RunAsWork<Integer>()
+		{
+			public Integer doWork() throws Exception
+			{
+				RetryingTransactionCallback<Integer> work = new RetryingTransactionCallback<Integer>()
+				{
+					public Integer execute() throws Throwable
+					{
+						return write(batch);
+					}
+				};
+				return m_transactionService.getRetryingTransactionHelper().doInTransaction(work, false, true);
+			}
+		}, owner);
+	}
+
+	private int write(List<Map.Entry<NodeRef, PendingRefresh>> batch)
+	{
+		long now = System.currentTimeMillis();
+		int written = 0;
+		for (Map.Entry<NodeRef, PendingRefresh> entry : batch)
+		{
+			NodeRef nodeRef = entry.getKey();
+			PendingRefresh refresh = entry.getValue();
+			LockInfo lockInfo = m_lockStore.getLockInfo(nodeRef);
+			if (lockInfo == null || !lockInfo.isLocked() || lockInfo.isExpired()
+					|| !refresh.owner.equals(lockInfo.getOwner()))
+			{
+				// Released, expired or taken over since the refresh
+				m_discardedCount.incrementAndGet();
+				continue;
+			}
+			Date stored = lockInfo.getExpires();
+			if (stored == null || stored.getTime() >= refresh.expiresAt)
+			{
+				// Already valid for longer, e.g. locked again
+				continue;
+			}
+			lockInfo.setTimeoutSeconds((int) Math.max(1L, (refresh.expiresAt - now) / 1000L));
+			m_lockStore.lock(nodeRef, lockInfo);
+			if (m_lockHierarchyCache != null)
+			{
+				// Also refreshes the depth infinity lock registry
+				m_lockHierarchyCache.invalidateLock(nodeRef);
+			}
+			written++;
+		}
+		return written;
+	}
+
+	public long getFlushIntervalSeconds()
+	{
+		return m_flushIntervalMillis / 1000L;
+	}
+
+	public long getAbsorbedCount()
+	{
+		return m_absorbedCount.get();
+	}
+
+	public long getFlushedCount()
+	{
+		return m_flushedCount.get();
+	}
+
+	public long getDiscardedCount()
+	{
+		return m_discardedCount.get();
+	}
+
+	public int getPendingCount()
+	{
+		return m_pending.size();
+	}
+
+	private static final class PendingRefresh
+	{
+		private final String owner;
+		private final long expiresAt;
+
+		private PendingRefresh(String owner, long expiresAt)
+		{
+			this.owner = owner;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link LockRefreshCoalescer}
+ */
+public interface LockRefreshCoalescerMBean
+{
+	public boolean isEnabled();
+
+	public long getFlushIntervalSeconds();
+
+	/**
+	 * @return the number of refreshes kept in memory instead of being written to the lock store
+	 */
+	public long getAbsorbedCount();
+
+	/**
+	 * @return the number of lock expiries written to the lock store by flushes
+	 */
+	public long getFlushedCount();
+
+	/**
+	 * @return the number of pending refreshes dropped because the lock had been released or taken over
+	 */
+	public long getDiscardedCount();
+
+	/**
+	 * @return the number of refreshes waiting for the next flush
+	 */
+	public int getPendingCount();
+
+	/**
+	 * Write the pending refreshes to the lock store now, in the calling thread.
+	 */
+	public void flush();
+}
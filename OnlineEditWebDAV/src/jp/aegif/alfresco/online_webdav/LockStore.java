@@ -0,0 +1,52 @@
+package jp.aegif.alfresco.online_webdav;
+
+import javax.servlet.http.HttpSession;
+
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Storage of the WebDAV locks.
+ * <p>
+ * All lock state read and written by the WebDAV methods, the lock caches and the background lock
+ * tasks goes through a lock store. {@link RepositoryLockStore} keeps the locks in the repository
+ * through the WebDAV lock service, {@link ShardedLockStore} keeps them in memory for single-node
+ * installations.
+ */
+public interface LockStore
+{
+	/**
+	 * @param nodeRef the node
+	 * @return the lock of the node, or null if the node has never been locked
+	 */
+	public LockInfo getLockInfo(NodeRef nodeRef);
+
+	/**
+	 * Store the lock of a node, replacing any previous lock.
+	 * 
+	 * @param nodeRef the node
+	 * @param lockInfo the lock
+	 */
+	public void lock(NodeRef nodeRef, LockInfo lockInfo);
+
+	/**
+	 * Remove the lock of a node.
+	 * 
+	 * @param nodeRef the node
+	 */
+	public void unlock(NodeRef nodeRef);
+
+	/**
+	 * Associate the locks taken by the current thread with an HTTP session, if the store releases
+	 * locks when their session ends.
+	 * 
+	 * @param session the HTTP session of the current request
+	 */
+	public void setCurrentSession(HttpSession session);
+
+	/**
+	 * @return true if the locks are only held by this store, so that every lock change goes through
+	 *         it and the locks can not be found by searching the repository
+	 */
+	public boolean isLocal();
+}
@@ -0,0 +1,178 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.model.FileNotFoundException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Repository state of the node addressed by an online edit request.
+ * <p>
+ * A single request may resolve its node in several transactions (e.g. PUT in parseRequestBody and
+ * executeImpl) and check its aspects, properties and lock several times. The context resolves the
+ * node once and loads the rest lazily on first use. {@link WebDAVMethod} calls {@link #invalidate()}
+ * at the start of every transaction attempt, and methods changing the node call it after the change,
+ * so that the memoized state never outlives the transaction it was read in. The site id does not
+ * depend on the transaction and is kept for the whole request.
+ * <p>
+ * Instances are confined to the request thread.
+ */
+public class NodeContext
+{
+	private final WebDAVHelper m_davHelper;
+	private final HttpServletRequest m_request;
+	private final NodeRef m_nodeRef;
+
+	private FileInfo m_fileInfo;
+	private FileNotFoundException m_notFound;
+	private ETag m_etag;
+	private Set<QName> m_aspects;
+	private Map<QName, Serializable> m_properties;
+	private LockInfo m_lockInfo;
+	private boolean m_lockInfoLoaded;
+	private String m_siteId;
+
+	private int m_loadCount;
+
+	/**
+	 * @param davHelper the WebDAV helper
+	 * @param request the request, used to resolve the node through the FileInfo cache
+	 * @param nodeRef the node addressed by the request URI, may be null
+	 */
+	public NodeContext(WebDAVHelper davHelper, HttpServletRequest request, NodeRef nodeRef)
+	{
+		m_davHelper = davHelper;
+		m_request = request;
+		m_nodeRef = nodeRef;
+	}
+
+	/**
+	 * @return the node addressed by the request URI, or null if the URI does not address a document
+	 */
+	public NodeRef getNodeRef()
+	{
+		return m_nodeRef;
+	}
+
+	/**
+	 * @return the file info of the node
+	 * @throws FileNotFoundException if the node does not exist or is not readable
+	 */
+	public FileInfo getFileInfo() throws FileNotFoundException
+	{
+		if (m_fileInfo == null && m_notFound == null)
+		{
+			m_loadCount++;
+			try
+			{
+				m_fileInfo = m_davHelper.getFileInfoFromRequestPath(m_request);
+			}
+			catch (FileNotFoundException e)
+			{
+				m_notFound = e;
+			}
+		}
+		if (m_notFound != null)
+		{
+			throw m_notFound;
+		}
+		return m_fileInfo;
+	}
+
+	/**
+	 * @return the ETag of the node
+	 * @throws FileNotFoundException if the node does not exist or is not readable
+	 */
+	public ETag getETag() throws FileNotFoundException
+	{
+		if (m_etag == null)
+		{
+			m_etag = m_davHelper.getETag(getFileInfo());
+		}
+		return m_etag;
+	}
+
+	/**
+	 * @param aspect the aspect
+	 * @return true if the node has the aspect
+	 */
+	public boolean hasAspect(QName aspect)
+	{
+		if (m_aspects == null)
+		{
+			m_loadCount++;
+			m_aspects = m_davHelper.getNodeService().getAspects(m_nodeRef);
+		}
+		return m_aspects.contains(aspect);
+	}
+
+	/**
+	 * @param name the property
+	 * @return the property value, or null if not set
+	 */
+	public Serializable getProperty(QName name)
+	{
+		if (m_properties == null)
+		{
+			m_loadCount++;
+			m_properties = m_davHelper.getNodeService().getProperties(m_nodeRef);
+		}
+		return m_properties.get(name);
+	}
+
+	/**
+	 * @return the WebDAV lock state stored on the node itself, or null if none
+	 */
+	public LockInfo getLockInfo()
+	{
+		if (!m_lockInfoLoaded)
+		{
+			m_loadCount++;
+			m_lockInfo = m_davHelper.getLockStore().getLockInfo(m_nodeRef);
+			m_lockInfoLoaded = true;
+		}
+		return m_lockInfo;
+	}
+
+	/**
+	 * @return the short name of the site containing the node, or {@link WebDAVHelper#EMPTY_SITE_ID}
+	 */
+	public String getSiteId()
+	{
+		if (m_siteId == null)
+		{
+			m_loadCount++;
+			m_siteId = m_davHelper.determineSiteId(m_nodeRef);
+		}
+		return m_siteId;
+	}
+
+	/**
+	 * Drop the memoized repository state, e.g. after changing the node or when a transaction is retried
+	 */
+	public void invalidate()
+	{
+		m_fileInfo = null;
+		m_notFound = null;
+		m_etag = null;
+		m_aspects = null;
+		m_properties = null;
+		m_lockInfo = null;
+		m_lockInfoLoaded = false;
+	}
+
+	/**
+	 * @return the number of repository lookups made through the context
+	 */
+	public int getLoadCount()
+	{
+		return m_loadCount;
+	}
+}
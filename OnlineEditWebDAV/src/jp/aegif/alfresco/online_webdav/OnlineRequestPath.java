@@ -0,0 +1,221 @@
+package jp.aegif.alfresco.online_webdav;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+
+/**
+ * Parsed form of an online edit request URI.
+ * <p>
+ * Online edit URIs have the form <tt>/webdav2/{ticket}/{uuid}.{ext}</tt>. The URI is parsed in a
+ * single pass the first time {@link #resolve(HttpServletRequest)} is called for a request, and the
+ * result is kept as a request attribute so that the authentication filter, {@link WebDAVHelper} and
+ * the WebDAV methods all share the same instance.
+ */
+public final class OnlineRequestPath
+{
+	/** Name of the request attribute holding the parsed path */
+	public static final String REQUEST_ATTRIBUTE = OnlineRequestPath.class.getName();
+
+	private static final String SERVLET_SEGMENT = "/webdav2";
+
+	/**
+	 * Kind of resource addressed by the request URI
+	 */
+	public enum Type
+	{
+		/** <tt>/webdav2</tt> or <tt>/webdav2/</tt> */
+		ROOT,
+		/** <tt>/webdav2/{ticket}</tt> */
+		TICKET,
+		/** <tt>/webdav2/{ticket}/{uuid}.{ext}</tt> */
+		DOCUMENT,
+		/** Anything else, the request is not handled by the online edit servlet */
+		OTHER
+	}
+
+	private final String m_uri;
+	private final Type m_type;
+	private final String m_ticket;
+	private final String m_uuid;
+	private final String m_fileName;
+
+	private NodeRef m_nodeRef;
+	private String m_repositoryPath;
+
+	private OnlineRequestPath(String uri, Type type, String ticket, String uuid, String fileName)
+	{
+		m_uri = uri;
+		m_type = type;
+		m_ticket = ticket;
+		m_uuid = uuid;
+		m_fileName = fileName;
+	}
+
+	/**
+	 * Return the parsed path for the request, parsing the request URI on first use.
+	 *
+	 * @param request HttpServletRequest
+	 * @return OnlineRequestPath
+	 */
+	public static OnlineRequestPath resolve(HttpServletRequest request)
+	{
+		Object cached = request.getAttribute(REQUEST_ATTRIBUTE);
+		if (cached instanceof OnlineRequestPath)
+		{
+			OnlineRequestPath path = (OnlineRequestPath) cached;
+			if (path.m_uri.equals(request.getRequestURI()))
+			{
+				return path;
+			}
+		}
+
+		OnlineRequestPath path = parse(request.getRequestURI());
+		request.setAttribute(REQUEST_ATTRIBUTE, path);
+		return path;
+	}
+
+	/**
+	 * Return the parsed path previously stored on the request, or null if the request has not been
+	 * resolved yet.
+	 *
+	 * @param request ServletRequest
+	 * @return OnlineRequestPath
+	 */
+	public static OnlineRequestPath get(ServletRequest request)
+	{
+		Object cached = request.getAttribute(REQUEST_ATTRIBUTE);
+		return (cached instanceof OnlineRequestPath) ? (OnlineRequestPath) cached : null;
+	}
+
+	/**
+	 * Parse a raw (still URL encoded) request URI.
+	 *
+	 * @param uri the request URI
+	 * @return OnlineRequestPath
+	 */
+	public static OnlineRequestPath parse(String uri)
+	{
+		if (uri == null)
+		{
+			return new OnlineRequestPath("", Type.OTHER, null, null, null);
+		}
+
+		int len = uri.length();
+		int segment = uri.lastIndexOf(SERVLET_SEGMENT + WebDAVHelper.PathSeperatorChar);
+		if (segment == -1)
+		{
+			Type type = uri.endsWith(SERVLET_SEGMENT) ? Type.ROOT : Type.OTHER;
+			return new OnlineRequestPath(uri, type, null, null, null);
+		}
+
+		// Start of the part following "/webdav2/"
+		int start = segment + SERVLET_SEGMENT.length() + 1;
+		if (start == len)
+		{
+			return new OnlineRequestPath(uri, Type.ROOT, null, null, null);
+		}
+
+		int lastSlash = uri.lastIndexOf(WebDAVHelper.PathSeperatorChar);
+		if (lastSlash < start)
+		{
+			// "/webdav2/{ticket}"
+			return new OnlineRequestPath(uri, Type.TICKET, uri.substring(start), null, null);
+		}
+
+		if (lastSlash == len - 1)
+		{
+			// "/webdav2/{ticket}/" - only valid if the ticket is a single segment
+			if (uri.lastIndexOf(WebDAVHelper.PathSeperatorChar, lastSlash - 1) < start && lastSlash > start)
+			{
+				return new OnlineRequestPath(uri, Type.TICKET, uri.substring(start, lastSlash), null, null);
+			}
+			return new OnlineRequestPath(uri, Type.OTHER, null, null, null);
+		}
+
+		// "/webdav2/{ticket}/{uuid}.{ext}"
+		int dot = uri.lastIndexOf('.');
+		if (dot <= lastSlash)
+		{
+			return new OnlineRequestPath(uri, Type.OTHER, null, null, null);
+		}
+
+		return new OnlineRequestPath(uri, Type.DOCUMENT,
+				uri.substring(start, lastSlash), uri.substring(lastSlash + 1, dot), uri.substring(lastSlash + 1));
+	}
+
+	/**
+	 * @return the raw request URI
+	 */
+	public String getRequestURI()
+	{
+		return m_uri;
+	}
+
+	/**
+	 * @return the kind of resource addressed by the URI
+	 */
+	public Type getType()
+	{
+		return m_type;
+	}
+
+	/**
+	 * @return the ticket embedded in the URI, or null for root and unknown paths
+	 */
+	public String getTicket()
+	{
+		return m_ticket;
+	}
+
+	/**
+	 * @return the node uuid, or null if the URI does not address a document
+	 */
+	public String getUuid()
+	{
+		return m_uuid;
+	}
+
+	/**
+	 * @return the last path segment, e.g. <tt>{uuid}.docx</tt>, or null if the URI does not address a document
+	 */
+	public String getFileName()
+	{
+		return m_fileName;
+	}
+
+	/**
+	 * @return the node addressed by the URI, or null if the URI does not address a document
+	 */
+	public NodeRef getNodeRef()
+	{
+		if (m_nodeRef == null && m_uuid != null)
+		{
+			m_nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, m_uuid);
+		}
+		return m_nodeRef;
+	}
+
+	/**
+	 * @return the decoded repository path, or null if it has not been computed for this request yet
+	 */
+	public String getRepositoryPath()
+	{
+		return m_repositoryPath;
+	}
+
+	/**
+	 * @param repositoryPath the decoded repository path computed by {@link WebDAVHelper#getRepositoryPath(HttpServletRequest)}
+	 */
+	void setRepositoryPath(String repositoryPath)
+	{
+		m_repositoryPath = repositoryPath;
+	}
+
+	public String toString()
+	{
+		return m_type + "[" + m_uri + "]";
+	}
+}
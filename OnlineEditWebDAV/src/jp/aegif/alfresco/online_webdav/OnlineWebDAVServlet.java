@@ -3,8 +3,16 @@ package jp.aegif.alfresco.online_webdav;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Hashtable;
-
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.UnavailableException;
@@ -14,6 +22,13 @@ import javax.servlet.http.HttpServletResponse;
 
 //import org.alfresco.repo.tenant.TenantService;
 //import org.alfresco.repo.webdav.MTNodesCache;
+import jp.aegif.alfresco.online_webdav.metrics.MeteredResponse;
+import jp.aegif.alfresco.online_webdav.metrics.OnlineWebDAVMetrics;
+import jp.aegif.alfresco.online_webdav.metrics.RequestTimings;
+import jp.aegif.alfresco.online_webdav.metrics.SlowRequestMonitor;
+import net.sf.acegisecurity.Authentication;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.webdav.ExceptionHandler;
 import org.alfresco.repo.webdav.WebDAV;
 import org.alfresco.repo.webdav.WebDAVServerException;
@@ -28,6 +43,7 @@ import org.alfresco.util.FileFilterMode;
 import org.alfresco.util.FileFilterMode.Client;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.surf.util.I18NUtil;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
@@ -36,6 +52,7 @@ public class OnlineWebDAVServlet extends HttpServlet
 
 	// Logging
 	private static Log logger = LogFactory.getLog(OnlineWebDAVServlet.class);
+	private static Log slowRequestLogger = LogFactory.getLog(OnlineWebDAVServlet.class.getName() + ".slow");
 
 	// Constants
 	public static final String WEBDAV_PREFIX = "webdav"; 
@@ -43,6 +60,12 @@ public class OnlineWebDAVServlet extends HttpServlet
 
 	// Init parameter names
 	private static final String BEAN_INIT_PARAMS = "webdav.initParams";
+	private static final String BEAN_METRICS = "onlineWebDAVMetrics";
+	private static final String BEAN_ADMISSION_CONTROL = "onlineWebDAVAdmissionControl";
+	private static final String BEAN_USER_LIMITER = "onlineWebDAVUserRequestLimiter";
+	private static final String BEAN_VIRTUAL_THREADS = "onlineWebDAVVirtualThreadExecutor";
+	private static final String BEAN_WARM_UP = "onlineWebDAVWarmUp";
+	private static final String BEAN_SLOW_REQUEST_MONITOR = "onlineWebDAVSlowRequestMonitor";
 
 	// Service registry, used by methods to find services to process requests
 	private ServiceRegistry m_serviceRegistry;
@@ -50,8 +73,8 @@ public class OnlineWebDAVServlet extends HttpServlet
 	// Transaction service, each request is wrapped in a transaction
 	private TransactionService m_transactionService;
 
-	// WebDAV method handlers
-	protected Hashtable<String,Class<? extends WebDAVMethod>> m_davMethods;
+	// WebDAV method handlers, immutable once initialised
+	protected Map<String, WebDAVMethodFactory> m_davMethods = Collections.emptyMap();
 
 	// Root node
 	//    private static MTNodesCache m_rootNodes;
@@ -59,18 +82,168 @@ public class OnlineWebDAVServlet extends HttpServlet
 	// WebDAV helper class
 	private WebDAVHelper m_davHelper;
 
-	protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+	// Request metrics
+	private OnlineWebDAVMetrics m_metrics;
+
+	// Stack sampling of long running requests
+	private SlowRequestMonitor m_slowRequestMonitor;
+
+	// Per method class concurrency limits
+	private AdmissionControl m_admissionControl;
+
+	// Per user concurrency and rate limits
+	private UserRequestLimiter m_userLimiter;
+
+	// Optional virtual thread per request execution
+	private VirtualThreadExecutor m_virtualThreads;
+
+	// Startup warm-up and readiness
+	private WarmUp m_warmUp;
+
+	protected void service(final HttpServletRequest request, final HttpServletResponse response) throws ServletException,
 	IOException {
-		long startTime = 0;
-		if (logger.isInfoEnabled())
+		if (m_virtualThreads != null && m_virtualThreads.isActive())
 		{
-			startTime = System.currentTimeMillis();
+			if (request.isAsyncSupported())
+			{
+				final AsyncContext asyncContext = request.startAsync(request, response);
+				final AtomicBoolean done = new AtomicBoolean();
+				asyncContext.setTimeout(m_virtualThreads.getTimeoutMillis());
+				asyncContext.addListener(new AsyncListener()
+				{
+					public void onTimeout(AsyncEvent event) throws IOException
+					{
+						if (logger.isWarnEnabled())
+							logger.warn("WebDAV request timed out after " + m_virtualThreads.getTimeoutMillis() + "ms [" + request.getRequestURI() + "]");
+						if (done.compareAndSet(false, true))
+						{
+							asyncContext.complete();
+						}
+					}
+
+					public void onError(AsyncEvent event) throws IOException
+					{
+						if (logger.isDebugEnabled())
+							logger.debug("WebDAV request failed [" + request.getRequestURI() + "]", event.getThrowable());
+						if (done.compareAndSet(false, true))
+						{
+							asyncContext.complete();
+						}
+					}
+
+					public void onComplete(AsyncEvent event) throws IOException
+					{
+					}
+
+					public void onStartAsync(AsyncEvent event) throws IOException
+					{
+					}
+				});
+
+				// Carry the thread-local context set up by the filters over to the virtual thread
+				final Authentication authentication = AuthenticationUtil.getFullAuthentication();
+				final Locale locale = I18NUtil.getLocale();
+
+				Runnable task = new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							if (authentication != null)
+							{
+								AuthenticationUtil.setFullAuthentication(authentication);
+							}
+							I18NUtil.setLocale(locale);
+							serviceRequest(request, response);
+						}
+						catch (Throwable e)
+						{
+							logger.error("WebDAV request failed [" + request.getRequestURI() + "]", e);
+						}
+						finally
+						{
+							AuthenticationUtil.clearCurrentSecurityContext();
+							I18NUtil.setLocale(null);
+							// Unless the container has already completed the request after a timeout or error
+							if (done.compareAndSet(false, true))
+							{
+								asyncContext.complete();
+							}
+						}
+					}
+				};
+				if (!m_virtualThreads.execute(task))
+				{
+					task.run();
+				}
+				return;
+			}
+			m_virtualThreads.fallback();
+		}
+
+		serviceRequest(request, response);
+	}
+
+	/**
+	 * Process a request on the current thread
+	 */
+	private void serviceRequest(HttpServletRequest request, HttpServletResponse servletResponse) throws ServletException,
+	IOException {
+		long startTime = System.nanoTime();
+		String httpMethod = request.getMethod();
+		boolean asyncAtStart = request.isAsyncStarted();
+
+		MeteredResponse response = new MeteredResponse(servletResponse);
+		RequestTimings timings = null;
+		if (m_metrics != null)
+		{
+			m_metrics.requestStarted(httpMethod);
+		}
+		SlowRequestMonitor.ActiveRequest activeRequest = null;
+		if (m_slowRequestMonitor != null)
+		{
+			activeRequest = m_slowRequestMonitor.requestStarted(startTime);
 		}
 
 		FileFilterMode.setClient(Client.webdav);
 
+		UserRequestLimiter.UserLimit userLimit = null;
+		Bulkhead bulkhead = null;
 		try
 		{
+			// Keep a single user from monopolising the worker threads, the user is set by the authentication filter
+			String userName = AuthenticationUtil.getFullyAuthenticatedUser();
+			if (m_userLimiter != null && userName != null)
+			{
+				userLimit = m_userLimiter.acquire(userName);
+				if (userLimit == null)
+				{
+					if (logger.isDebugEnabled())
+						logger.debug("WebDAV " + httpMethod + " refused, user limit reached for " + userName + " [" + request.getRequestURI() + "]");
+
+					response.setHeader("Retry-After", String.valueOf(m_userLimiter.getRetryAfterSeconds(userName)));
+					response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					return;
+				}
+			}
+
+			// Refuse the request quickly rather than letting it pile up behind a saturated method class
+			if (m_admissionControl != null)
+			{
+				bulkhead = m_admissionControl.getBulkhead(httpMethod);
+				if (bulkhead != null && !admit(bulkhead))
+				{
+					bulkhead = null;
+					if (logger.isDebugEnabled())
+						logger.debug("WebDAV " + httpMethod + " refused, concurrency limit reached [" + request.getRequestURI() + "]");
+
+					response.setHeader("Retry-After", String.valueOf(m_admissionControl.getRetryAfterSeconds()));
+					response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					return;
+				}
+			}
+
 			// Create the appropriate WebDAV method for the request and execute it
 			final WebDAVMethod method = createMethod(request, response);
 
@@ -84,6 +257,8 @@ public class OnlineWebDAVServlet extends HttpServlet
 				response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
 				return;
 			}
+			timings = new RequestTimings();
+			method.setTimings(timings);
 			//skip the ckeck below
 			//            else if (method.getRootNodeRef() == null)
 			//            {
@@ -104,16 +279,166 @@ public class OnlineWebDAVServlet extends HttpServlet
 		}
 		finally
 		{
-			if (logger.isInfoEnabled())
+			FileFilterMode.clearClient();
+
+			// Only this thread can be sampled, a stream running on another thread is not
+			List<SlowRequestMonitor.StackSample> samples = null;
+			if (m_slowRequestMonitor != null)
 			{
-				logger.info(request.getMethod() + " took " + (System.currentTimeMillis()-startTime) + "ms to execute ["+request.getRequestURI()+"]");
+				samples = m_slowRequestMonitor.requestFinished(activeRequest);
 			}
 
-			FileFilterMode.clearClient();
+			RequestCompletion completion = new RequestCompletion(request, response, httpMethod, startTime, timings, samples,
+					bulkhead, userLimit);
+			if (!asyncAtStart && request.isAsyncStarted())
+			{
+				// The content is still being streamed, hold the permits and the clock until it has been sent
+				try
+				{
+					request.getAsyncContext().addListener(completion);
+				}
+				catch (IllegalStateException e)
+				{
+					completion.completed();
+				}
+			}
+			else
+			{
+				completion.completed();
+			}
 		}
 
 	}
 
+	/**
+	 * Releases the admission permits of a request and records its metrics once, when the request has
+	 * been processed or, for content streamed asynchronously, when the async context completes
+	 */
+	private final class RequestCompletion implements AsyncListener
+	{
+		private final HttpServletRequest m_request;
+		private final MeteredResponse m_response;
+		private final String m_httpMethod;
+		private final String m_userName;
+		private final long m_startTime;
+		private final RequestTimings m_timings;
+		private final List<SlowRequestMonitor.StackSample> m_samples;
+		private final Bulkhead m_bulkhead;
+		private final UserRequestLimiter.UserLimit m_userLimit;
+		private final AtomicBoolean m_done = new AtomicBoolean();
+
+		private RequestCompletion(HttpServletRequest request, MeteredResponse response, String httpMethod, long startTime,
+				RequestTimings timings, List<SlowRequestMonitor.StackSample> samples, Bulkhead bulkhead,
+				UserRequestLimiter.UserLimit userLimit)
+		{
+			m_request = request;
+			m_response = response;
+			m_httpMethod = httpMethod;
+			// The async completion runs without the security context of the request
+			m_userName = AuthenticationUtil.getFullyAuthenticatedUser();
+			m_startTime = startTime;
+			m_timings = timings;
+			m_samples = samples;
+			m_bulkhead = bulkhead;
+			m_userLimit = userLimit;
+		}
+
+		private void completed()
+		{
+			if (!m_done.compareAndSet(false, true))
+			{
+				return;
+			}
+			if (m_bulkhead != null)
+			{
+				m_bulkhead.release();
+			}
+			if (m_userLimit != null)
+			{
+				m_userLimit.release();
+			}
+
+			long elapsed = System.nanoTime() - m_startTime;
+			if (m_metrics != null && m_metrics.requestCompleted(m_httpMethod, m_response.getStatus(), elapsed, m_timings)
+					&& slowRequestLogger.isWarnEnabled())
+			{
+				slowRequestLogger.warn(describeSlowRequest(m_request, m_response, m_httpMethod, m_userName, elapsed, m_timings, m_samples));
+			}
+			if (logger.isDebugEnabled())
+			{
+				logger.debug(m_httpMethod + " took " + (elapsed / 1000000L) + "ms to execute ["+m_request.getRequestURI()+"]");
+			}
+		}
+
+		public void onComplete(AsyncEvent event) throws IOException
+		{
+			completed();
+		}
+
+		public void onTimeout(AsyncEvent event) throws IOException
+		{
+			completed();
+		}
+
+		public void onError(AsyncEvent event) throws IOException
+		{
+			completed();
+		}
+
+		public void onStartAsync(AsyncEvent event) throws IOException
+		{
+		}
+	}
+
+	/**
+	 * Build the slow request log entry: method, document, user, phase timings, transfer sizes,
+	 * transaction retries and the stack samples taken while the request was running
+	 */
+	private String describeSlowRequest(HttpServletRequest request, MeteredResponse response, String httpMethod, String userName,
+			long elapsed, RequestTimings timings, List<SlowRequestMonitor.StackSample> samples)
+	{
+		OnlineRequestPath path = OnlineRequestPath.resolve(request);
+		int bytesIn = request.getContentLength();
+
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("Slow request ").append(httpMethod)
+		.append(" uuid=").append(path.getUuid())
+		.append(" user=").append(userName)
+		.append(" status=").append(response.getStatus())
+		.append(" took ").append(elapsed / 1000000L).append("ms")
+		.append(" bytesIn=").append(bytesIn < 0 ? 0 : bytesIn)
+		.append(" bytesOut=").append(response.getBytesWritten());
+		if (timings != null)
+		{
+			sb.append(' ').append(timings);
+		}
+		sb.append(" [").append(request.getRequestURI()).append(']');
+		if (samples != null)
+		{
+			SlowRequestMonitor.appendSamples(sb, samples);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Take a permit from a bulkhead, an interrupted wait counts as refused.
+	 * 
+	 * @param bulkhead the bulkhead limiting the request method
+	 * @return true if a permit was taken
+	 */
+	private boolean admit(Bulkhead bulkhead)
+	{
+		try
+		{
+			return bulkhead.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
 	private WebDAVMethod createMethod(HttpServletRequest request, HttpServletResponse response)
 	{
 		// Get the type of the current request
@@ -124,29 +449,26 @@ public class OnlineWebDAVServlet extends HttpServlet
 			logger.debug("WebDAV request " + strHttpMethod + " on path "
 					+ request.getRequestURI());
 
-		Class<? extends WebDAVMethod> methodClass = m_davMethods.get(strHttpMethod);
-		WebDAVMethod method = null;
+		WebDAVMethodFactory factory = m_davMethods.get(strHttpMethod);
 
-		if ( methodClass != null)
+		if (m_metrics != null)
 		{
-			try
-			{
-				// Create the handler method
-
-				method = methodClass.newInstance();
-				//NodeRef rootNodeRef = m_rootNodes.getNodeForCurrentTenant();
-				method.setDetails(request, response, m_davHelper, null);
-			}
-			catch (Exception ex)
-			{
-				// Debug
+			m_metrics.methodDispatched(strHttpMethod, factory != null);
+		}
 
-				if ( logger.isDebugEnabled())
-					logger.debug(ex);
-			}
+		if (factory == null)
+		{
+			// Not supported
+			return null;
 		}
 
-		// Return the WebDAV method handler, or null if not supported
+		// Create the handler method, any failure is reported to the client by the caller
+
+		WebDAVMethod method = factory.newMethod();
+		//NodeRef rootNodeRef = m_rootNodes.getNodeForCurrentTenant();
+		method.setDetails(request, response, m_davHelper, null);
+
+		// Return the WebDAV method handler
 
 		return method;
 	}
@@ -187,6 +509,12 @@ public class OnlineWebDAVServlet extends HttpServlet
 		// comm4.2.d
 		// Get the WebDAV helper
 		m_davHelper = (WebDAVHelper) context.getBean("webDAVHelperOnline");
+		m_metrics = (OnlineWebDAVMetrics) context.getBean(BEAN_METRICS);
+		m_slowRequestMonitor = (SlowRequestMonitor) context.getBean(BEAN_SLOW_REQUEST_MONITOR);
+		m_admissionControl = (AdmissionControl) context.getBean(BEAN_ADMISSION_CONTROL);
+		m_userLimiter = (UserRequestLimiter) context.getBean(BEAN_USER_LIMITER);
+		m_virtualThreads = (VirtualThreadExecutor) context.getBean(BEAN_VIRTUAL_THREADS);
+		m_warmUp = (WarmUp) context.getBean(BEAN_WARM_UP);
 
 		// Initialize the root node --> Skip below
 		//initializeRootNode(storeValue, rootPath, context, nodeService, searchService, namespaceService, tenantService, m_transactionService);
@@ -194,21 +522,112 @@ public class OnlineWebDAVServlet extends HttpServlet
 
 		// Create the WebDAV methods table
 
-		m_davMethods = new Hashtable<String, Class<? extends WebDAVMethod>>();
-
-		m_davMethods.put(WebDAV.METHOD_PROPFIND, PropFindMethod.class);
-		m_davMethods.put(WebDAV.METHOD_PROPPATCH, PropPatchMethod.class);
-		//        m_davMethods.put(WebDAV.METHOD_COPY, CopyMethod.class);
-		//        m_davMethods.put(WebDAV.METHOD_DELETE, DeleteMethod.class);
-		m_davMethods.put(WebDAV.METHOD_GET, GetMethod.class);
-		m_davMethods.put(WebDAV.METHOD_HEAD, HeadMethod.class);
-		m_davMethods.put(WebDAV.METHOD_LOCK, LockMethod.class);
-		//        m_davMethods.put(WebDAV.METHOD_MKCOL, MkcolMethod.class);
-		//        m_davMethods.put(WebDAV.METHOD_MOVE, MoveMethod.class);
-		m_davMethods.put(WebDAV.METHOD_OPTIONS, OptionsMethod.class);
-		//        m_davMethods.put(WebDAV.METHOD_POST, PostMethod.class);
-		m_davMethods.put(WebDAV.METHOD_PUT, PutMethod.class);
-		m_davMethods.put(WebDAV.METHOD_UNLOCK, UnlockMethod.class);
+		m_davMethods = createMethodTable();
+
+		// Warm up the hot paths before reporting the servlet ready
+
+		m_warmUp.run(m_davMethods, m_davHelper);
+	}
+
+	public void destroy()
+	{
+		if (m_warmUp != null)
+		{
+			m_warmUp.reset();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Build the immutable dispatch table of WebDAV method factories, checking every factory
+	 * produces a handler so that misconfiguration is reported at startup.
+	 * 
+	 * @return Map of HTTP method to factory
+	 * @throws ServletException if a factory is broken
+	 */
+	protected Map<String, WebDAVMethodFactory> createMethodTable() throws ServletException
+	{
+		Map<String, WebDAVMethodFactory> methods = new HashMap<String, WebDAVMethodFactory>();
+
+		methods.put(WebDAV.METHOD_PROPFIND, new WebDAVMethodFactory()
+		{
+			public WebDAVMethod newMethod()
+			{
+				return new PropFindMethod();
+			}
+		});
+		methods.put(WebDAV.METHOD_PROPPATCH, new WebDAVMethodFactory()
+		{
+			public WebDAVMethod newMethod()
+			{
+				return new PropPatchMethod();
+			}
+		});
+		//        COPY, DELETE are not supported
+		methods.put(WebDAV.METHOD_GET, new WebDAVMethodFactory()
+		{
+			public WebDAVMethod newMethod()
+			{
+				return new GetMethod();
+			}
+		});
+		methods.put(WebDAV.METHOD_HEAD, new WebDAVMethodFactory()
+		{
+			public WebDAVMethod newMethod()
+			{
+				return new HeadMethod();
+			}
+		});
+		methods.put(WebDAV.METHOD_LOCK, new WebDAVMethodFactory()
+		{
+			public WebDAVMethod newMethod()
+			{
+				return new LockMethod();
+			}
+		});
+		//        MKCOL, MOVE are not supported
+		methods.put(WebDAV.METHOD_OPTIONS, new WebDAVMethodFactory()
+		{
+			public WebDAVMethod newMethod()
+			{
+				return new OptionsMethod();
+			}
+		});
+		//        POST is not supported
+		methods.put(WebDAV.METHOD_PUT, new WebDAVMethodFactory()
+		{
+			public WebDAVMethod newMethod()
+			{
+				return new PutMethod();
+			}
+		});
+		methods.put(WebDAV.METHOD_UNLOCK, new WebDAVMethodFactory()
+		{
+			public WebDAVMethod newMethod()
+			{
+				return new UnlockMethod();
+			}
+		});
+
+		// Fail fast on a broken table rather than answering 501 at request time
+		for (Map.Entry<String, WebDAVMethodFactory> entry : methods.entrySet())
+		{
+			WebDAVMethod method;
+			try
+			{
+				method = entry.getValue().newMethod();
+			}
+			catch (RuntimeException e)
+			{
+				throw new ServletException("Failed to create WebDAV method handler for " + entry.getKey(), e);
+			}
+			if (method == null)
+			{
+				throw new ServletException("No WebDAV method handler created for " + entry.getKey());
+			}
+		}
+
+		return Collections.unmodifiableMap(methods);
 	}
 
 }
@@ -89,7 +89,7 @@ public class OptionsMethod extends WebDAVMethod
                     {
                         try
                         {
-                            FileInfo fileInfo = getDAVHelper().getFileInfoFromRequestPath(m_request);
+                            FileInfo fileInfo = getNodeContext().getFileInfo();
                             if ( fileInfo == null ) {
                             	return true;
                             }
@@ -0,0 +1,343 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of the path segments resolved by {@link WebDAVHelper#getNodeForPath(NodeRef, String)}.
+ * <p>
+ * Entries map a folder and a child name to the child node, so that resolving a path costs one hash
+ * lookup per segment instead of one child lookup, and folders shared by many paths are only looked
+ * up once. Moving, deleting or renaming a node drops the cached children of its parent folder, and
+ * deleting a folder also drops its own cached children, both at once and again after the commit;
+ * the entries below a moved folder stay valid as they only refer to node ids. Entries expire after
+ * <tt>timeToLiveSeconds</tt> to pick up changes made on other cluster members.
+ * <p>
+ * Segments are looked up with the permission checked {@link FileFolderService}. The node at the
+ * end of the path is still read by the caller, which checks it can be read by the current user and
+ * still has the requested name, and otherwise drops the path with {@link #evict(NodeRef, String)}.
+ */
+public class PathCache implements PathCacheMBean,
+		NodeServicePolicies.OnMoveNodePolicy,
+		NodeServicePolicies.OnDeleteNodePolicy,
+		NodeServicePolicies.OnUpdatePropertiesPolicy
+{
+	private static Log logger = LogFactory.getLog(PathCache.class);
+
+	private PolicyComponent m_policyComponent;
+	private FileFolderService m_fileFolderService;
+	private NodeService m_nodeService;
+
+	private int m_maxEntries = 20000;
+	private long m_timeToLiveMillis = 300000L;
+
+	// children by name, by parent folder
+	private final ConcurrentMap<NodeRef, ConcurrentMap<String, Entry>> m_folders = new ConcurrentHashMap<NodeRef, ConcurrentMap<String, Entry>>();
+	private final AtomicInteger m_size = new AtomicInteger();
+
+	private final AtomicLong m_hitCount = new AtomicLong();
+	private final AtomicLong m_missCount = new AtomicLong();
+	private final AtomicLong m_invalidationCount = new AtomicLong();
+
+	private final AfterCommitInvalidator<NodeRef> m_invalidator = new AfterCommitInvalidator<NodeRef>(
+			new AfterCommitInvalidator.Target<NodeRef>()
+			{
+				public void invalidate(NodeRef parentRef)
+				{
+					invalidateChildren(parentRef);
+				}
+			});
+
+	/**
+	 * @param policyComponent the policy component, used to bind the invalidation behaviours
+	 */
+	public void setPolicyComponent(PolicyComponent policyComponent)
+	{
+		m_policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param fileFolderService the file folder service used to look up path segments
+	 */
+	public void setFileFolderService(FileFolderService fileFolderService)
+	{
+		m_fileFolderService = fileFolderService;
+	}
+
+	/**
+	 * @param nodeService the node service used to find the parent of a renamed node, without permission checks
+	 */
+	public void setNodeService(NodeService nodeService)
+	{
+		m_nodeService = nodeService;
+	}
+
+	/**
+	 * @param maxEntries the maximum number of cached path segments
+	 */
+	public void setMaxEntries(int maxEntries)
+	{
+		m_maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param timeToLiveSeconds how long a path segment is kept
+	 */
+	public void setTimeToLiveSeconds(long timeToLiveSeconds)
+	{
+		m_timeToLiveMillis = timeToLiveSeconds * 1000L;
+	}
+
+	public void init()
+	{
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "onMoveNode", NotificationFrequency.EVERY_EVENT));
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.OnDeleteNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "onDeleteNode", NotificationFrequency.EVERY_EVENT));
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "onUpdateProperties", NotificationFrequency.EVERY_EVENT));
+	}
+
+	/**
+	 * Resolve a path below a root node.
+	 * 
+	 * @param rootNodeRef the root node
+	 * @param path the path, segments separated by <tt>/</tt>
+	 * @return the node, or null if a segment does not exist or cannot be read
+	 */
+	public NodeRef resolve(NodeRef rootNodeRef, String path)
+	{
+		long now = System.currentTimeMillis();
+		NodeRef nodeRef = rootNodeRef;
+		int len = path.length();
+		int start = 0;
+		while (start < len)
+		{
+			int end = path.indexOf(WebDAVHelper.PathSeperatorChar, start);
+			if (end == -1)
+			{
+				end = len;
+			}
+			if (end > start)
+			{
+				nodeRef = getChild(nodeRef, path.substring(start, end), now);
+				if (nodeRef == null)
+				{
+					return null;
+				}
+			}
+			start = end + 1;
+		}
+		return nodeRef;
+	}
+
+	/**
+	 * Drop the cached segments of a path, e.g. after the node it resolved to turned out to have been renamed.
+	 * 
+	 * @param rootNodeRef the root node
+	 * @param path the path, segments separated by <tt>/</tt>
+	 */
+	public void evict(NodeRef rootNodeRef, String path)
+	{
+		NodeRef nodeRef = rootNodeRef;
+		int len = path.length();
+		int start = 0;
+		while (start < len && nodeRef != null)
+		{
+			int end = path.indexOf(WebDAVHelper.PathSeperatorChar, start);
+			if (end == -1)
+			{
+				end = len;
+			}
+			if (end > start)
+			{
+				ConcurrentMap<String, Entry> children = m_folders.get(nodeRef);
+				Entry entry = children == null ? null : children.remove(path.substring(start, end));
+				if (entry == null)
+				{
+					return;
+				}
+				m_size.decrementAndGet();
+				m_invalidationCount.incrementAndGet();
+				nodeRef = entry.nodeRef;
+			}
+			start = end + 1;
+		}
+	}
+
+	private NodeRef getChild(NodeRef parentRef, String name, long now)
+	{
+		ConcurrentMap<String, Entry> children = m_folders.get(parentRef);
+		if (children != null)
+		{
+			Entry entry = children.get(name);
+			if (entry != null)
+			{
+				if (now < entry.expiresAt)
+				{
+					m_hitCount.incrementAndGet();
+					return entry.nodeRef;
+				}
+				if (children.remove(name, entry))
+				{
+					m_size.decrementAndGet();
+				}
+			}
+		}
+		m_missCount.incrementAndGet();
+
+		NodeRef childRef;
+		try
+		{
+			childRef = m_fileFolderService.searchSimple(parentRef, name);
+		}
+		catch (InvalidNodeRefException e)
+		{
+			invalidateChildren(parentRef);
+			return null;
+		}
+		if (childRef != null && m_maxEntries > 0 && m_timeToLiveMillis > 0)
+		{
+			put(parentRef, name, new Entry(childRef, now + m_timeToLiveMillis));
+		}
+		return childRef;
+	}
+
+	private void put(NodeRef parentRef, String name, Entry entry)
+	{
+		if (m_size.get() >= m_maxEntries)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Path cache full, clearing " + m_size.get() + " entries");
+			clear();
+		}
+		ConcurrentMap<String, Entry> children = m_folders.get(parentRef);
+		if (children == null)
+		{
+			ConcurrentMap<String, Entry> created = new ConcurrentHashMap<String, Entry>(8, 0.75f, 2);
+			children = m_folders.putIfAbsent(parentRef, created);
+			if (children == null)
+			{
+				children = created;
+			}
+		}
+		if (children.put(name, entry) == null)
+		{
+			m_size.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drop the cached children of a folder.
+	 * 
+	 * @param parentRef the folder
+	 */
+	public void invalidateChildren(NodeRef parentRef)
+	{
+		ConcurrentMap<String, Entry> children = m_folders.remove(parentRef);
+		if (children != null)
+		{
+			m_size.addAndGet(-children.size());
+			m_invalidationCount.incrementAndGet();
+		}
+	}
+
+	public void clear()
+	{
+		m_folders.clear();
+		m_size.set(0);
+	}
+
+	public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef)
+	{
+		m_invalidator.invalidate(oldChildAssocRef.getParentRef());
+		m_invalidator.invalidate(newChildAssocRef.getParentRef());
+	}
+
+	public void onDeleteNode(ChildAssociationRef childAssocRef, boolean isNodeArchived)
+	{
+		m_invalidator.invalidate(childAssocRef.getParentRef());
+		m_invalidator.invalidate(childAssocRef.getChildRef());
+	}
+
+	public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after)
+	{
+		Serializable oldName = before.get(ContentModel.PROP_NAME);
+		if (oldName == null || oldName.equals(after.get(ContentModel.PROP_NAME)))
+		{
+			return;
+		}
+		try
+		{
+			ChildAssociationRef parentAssoc = m_nodeService.getPrimaryParent(nodeRef);
+			if (parentAssoc.getParentRef() != null)
+			{
+				m_invalidator.invalidate(parentAssoc.getParentRef());
+			}
+		}
+		catch (InvalidNodeRefException e)
+		{
+			// Deleted in the same transaction, handled by onDeleteNode
+		}
+	}
+
+	public long getHitCount()
+	{
+		return m_hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return m_missCount.get();
+	}
+
+	public long getInvalidationCount()
+	{
+		return m_invalidationCount.get();
+	}
+
+	public int getSize()
+	{
+		return m_size.get();
+	}
+
+	public int getMaxEntries()
+	{
+		return m_maxEntries;
+	}
+
+	public long getTimeToLiveSeconds()
+	{
+		return m_timeToLiveMillis / 1000L;
+	}
+
+	private static final class Entry
+	{
+		private final NodeRef nodeRef;
+		private final long expiresAt;
+
+		private Entry(NodeRef nodeRef, long expiresAt)
+		{
+			this.nodeRef = nodeRef;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link PathCache}
+ */
+public interface PathCacheMBean
+{
+	/**
+	 * @return the number of path segments resolved from the cache
+	 */
+	public long getHitCount();
+
+	/**
+	 * @return the number of path segments looked up in the repository
+	 */
+	public long getMissCount();
+
+	/**
+	 * @return the number of folders whose cached children were dropped by node policies
+	 */
+	public long getInvalidationCount();
+
+	public int getSize();
+
+	public int getMaxEntries();
+
+	public long getTimeToLiveSeconds();
+
+	public void clear();
+}
@@ -190,7 +190,7 @@ public class PropFindMethod extends WebDAVMethod
 		try
 		{
 			// Check that the path exists
-			pathNodeInfo = getDAVHelper().getFileInfoFromRequestPath(m_request);
+			pathNodeInfo = getNodeContext().getFileInfo();
 		}
 		catch (FileNotFoundException e)
 		{
@@ -65,7 +65,7 @@ public class PropPatchMethod extends PropFindMethod
 		FileInfo pathNodeInfo = null;
 		try
 		{
-			pathNodeInfo = this.getDAVHelper().getFileInfoFromRequestPath(m_request);
+			pathNodeInfo = getNodeContext().getFileInfo();
 		}
 		catch (FileNotFoundException e)
 		{
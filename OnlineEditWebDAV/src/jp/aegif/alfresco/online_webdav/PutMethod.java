@@ -117,12 +117,13 @@ public class PutMethod extends WebDAVMethod implements ActivityPostProducer
 						try
 						{
 							//contentNodeInfo = getNodeForPath(getRootNodeRef(), getPath(), getServletPath());
-							contentNodeInfo = getDAVHelper().getFileInfoFromRequestPath(m_request);
+							contentNodeInfo = getNodeContext().getFileInfo();
 							checkNode(contentNodeInfo);
 							final NodeRef nodeRef = contentNodeInfo.getNodeRef();
-							if (getNodeService().hasAspect(contentNodeInfo.getNodeRef(), ContentModel.ASPECT_WEBDAV_NO_CONTENT))
+							if (getNodeContext().hasAspect(ContentModel.ASPECT_WEBDAV_NO_CONTENT))
 							{
 								getNodeService().removeAspect(nodeRef, ContentModel.ASPECT_WEBDAV_NO_CONTENT);
+								getNodeContext().invalidate();
 								if (logger.isDebugEnabled())
 								{
 									String path = getPath();
@@ -164,7 +165,7 @@ public class PutMethod extends WebDAVMethod implements ActivityPostProducer
 		try
 		{
 			//contentNodeInfo = getNodeForPath(getRootNodeRef(), getPath(), getServletPath());
-			contentNodeInfo = getDAVHelper().getFileInfoFromRequestPath(m_request);
+			contentNodeInfo = getNodeContext().getFileInfo();
 			// make sure that we are not trying to use a folder
 			if (contentNodeInfo.isFolder())
 			{
@@ -178,6 +179,7 @@ public class PutMethod extends WebDAVMethod implements ActivityPostProducer
 			if (fileFolderService.isHidden(contentNodeRef) && !getDAVHelper().isRenameShuffle(getPath()))
 			{
 				fileFolderService.setHidden(contentNodeRef, false);
+				getNodeContext().invalidate();
 				created = true;
 			}
 		}
@@ -207,7 +209,7 @@ public class PutMethod extends WebDAVMethod implements ActivityPostProducer
 		}
 
 		String userName = getDAVHelper().getAuthenticationService().getCurrentUserName();
-		LockInfo lockInfo = getDAVLockService().getLockInfo(contentNodeInfo.getNodeRef());
+		LockInfo lockInfo = getNodeContext().getLockInfo();
 
 		if (lockInfo != null)
 		{
@@ -234,8 +236,8 @@ public class PutMethod extends WebDAVMethod implements ActivityPostProducer
 		{
 			// Disable versioning if we are overwriting an empty file with content
 			NodeRef nodeRef = contentNodeInfo.getNodeRef();
-			ContentData contentData = (ContentData)getNodeService().getProperty(nodeRef, ContentModel.PROP_CONTENT);
-			if ((contentData == null || contentData.getSize() == 0) && getNodeService().hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE))
+			ContentData contentData = (ContentData)getNodeContext().getProperty(ContentModel.PROP_CONTENT);
+			if ((contentData == null || contentData.getSize() == 0) && getNodeContext().hasAspect(ContentModel.ASPECT_VERSIONABLE))
 			{
 				getDAVHelper().getPolicyBehaviourFilter().disableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
 				disabledVersioning = true;
@@ -258,6 +260,7 @@ public class PutMethod extends WebDAVMethod implements ActivityPostProducer
 
 			// Write the new data to the content node
 			writer.putContent(is);
+			getNodeContext().invalidate();
 			// Ask for the document metadata to be extracted
 			Action extract = getActionService().createAction(ContentMetadataExtracter.EXECUTOR_NAME);
 			if(extract != null)
@@ -394,9 +397,8 @@ public class PutMethod extends WebDAVMethod implements ActivityPostProducer
 		{
 			//contentNodeInfo = getNodeForPath(getRootNodeRef(), path, getServletPath());
 			//NodeRef nodeRef = contentNodeInfo.getNodeRef();
-			NodeRef nodeRef = getDAVHelper().getNodeRefFromRequestPath(m_request);
 			// Don't post activity data for hidden files, resource forks etc.
-			if (!getNodeService().hasAspect(nodeRef, ContentModel.ASPECT_HIDDEN))
+			if (!getNodeContext().hasAspect(ContentModel.ASPECT_HIDDEN))
 			{
 				if (isCreated())
 				{
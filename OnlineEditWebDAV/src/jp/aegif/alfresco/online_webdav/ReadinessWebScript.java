@@ -0,0 +1,39 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Readiness endpoint for load balancers, answers 503 until the online edit servlet has been
+ * initialised and the repository independent steps of {@link WarmUp} have run. The WebDAV methods
+ * themselves are not warmed up.
+ */
+public class ReadinessWebScript extends AbstractWebScript
+{
+	private WarmUp warmUp;
+
+	public void setWarmUp(WarmUp warmUp)
+	{
+		this.warmUp = warmUp;
+	}
+
+	public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException
+	{
+		boolean ready = warmUp.isReady();
+
+		res.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		res.setContentType("text/plain");
+		res.setContentEncoding("UTF-8");
+		res.setHeader("Cache-Control", "no-cache");
+
+		Writer writer = res.getWriter();
+		writer.write(ready ? "ready" : "starting");
+		writer.flush();
+	}
+}
@@ -0,0 +1,61 @@
+package jp.aegif.alfresco.online_webdav;
+
+import javax.servlet.http.HttpSession;
+
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.repo.webdav.WebDAVLockService;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Lock store keeping the locks in the repository through the WebDAV lock service, shared with the
+ * other servlets and cluster members.
+ */
+public class RepositoryLockStore implements LockStore
+{
+	private WebDAVLockService m_lockService;
+
+	public RepositoryLockStore()
+	{
+	}
+
+	/**
+	 * @param lockService the WebDAV lock service holding the locks
+	 */
+	public RepositoryLockStore(WebDAVLockService lockService)
+	{
+		m_lockService = lockService;
+	}
+
+	/**
+	 * @param lockService the WebDAV lock service holding the locks
+	 */
+	public void setLockService(WebDAVLockService lockService)
+	{
+		m_lockService = lockService;
+	}
+
+	public LockInfo getLockInfo(NodeRef nodeRef)
+	{
+		return m_lockService.getLockInfo(nodeRef);
+	}
+
+	public void lock(NodeRef nodeRef, LockInfo lockInfo)
+	{
+		m_lockService.lock(nodeRef, lockInfo);
+	}
+
+	public void unlock(NodeRef nodeRef)
+	{
+		m_lockService.unlock(nodeRef);
+	}
+
+	public void setCurrentSession(HttpSession session)
+	{
+		m_lockService.setCurrentSession(session);
+	}
+
+	public boolean isLocal()
+	{
+		return false;
+	}
+}
@@ -0,0 +1,206 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Single pass decoder of the repository path of a request URI.
+ * <p>
+ * The repository path is the decoded part of the URI following the servlet path, without a
+ * trailing slash, or <tt>/</tt> if there is nothing after the servlet path. The decoder finds the
+ * servlet path in the raw URI and percent-decodes (UTF-8) only the part following it, straight from
+ * the URI's characters into one buffer. URIs it cannot handle this way (an escape before the servlet
+ * path or a malformed escape) are left to the caller, which falls back to decoding the whole URI.
+ * <p>
+ * Office sends the same URI many times while a document is open, so decoded paths are kept in a
+ * small cache keyed by the raw URI, cleared when it fills up.
+ */
+public final class RepositoryPathDecoder
+{
+	private static final int MAX_CACHED_PATHS = 1024;
+
+	private final String m_servletPath;
+	private final ConcurrentMap<String, String> m_cache = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param servletPath the servlet path the repository path follows
+	 */
+	public RepositoryPathDecoder(String servletPath)
+	{
+		m_servletPath = servletPath;
+	}
+
+	/**
+	 * @return the servlet path the repository path follows
+	 */
+	public String getServletPath()
+	{
+		return m_servletPath;
+	}
+
+	/**
+	 * @param uri the raw request URI
+	 * @return the repository path, or null if the URI must be decoded the slow way
+	 */
+	public String decode(String uri)
+	{
+		String path = m_cache.get(uri);
+		if (path != null)
+		{
+			return path;
+		}
+
+		path = decode(uri, m_servletPath);
+		if (path != null)
+		{
+			if (m_cache.size() >= MAX_CACHED_PATHS)
+			{
+				m_cache.clear();
+			}
+			m_cache.put(uri, path);
+		}
+		return path;
+	}
+
+	/**
+	 * @param uri the raw request URI
+	 * @param servletPath the servlet path
+	 * @return the repository path, or null if the URI must be decoded the slow way
+	 */
+	public static String decode(String uri, String servletPath)
+	{
+		int rootPos = servletPath.length() == 0 ? 0 : uri.indexOf(servletPath);
+		int start;
+		if (rootPos == -1)
+		{
+			start = 0;
+			rootPos = uri.length();
+		}
+		else
+		{
+			start = rootPos + servletPath.length();
+		}
+		// An escape before the servlet path could decode to the servlet path itself
+		int firstEscape = uri.indexOf('%');
+		if (firstEscape != -1 && firstEscape < rootPos)
+		{
+			return null;
+		}
+
+		int end = uri.length();
+		if (start >= end)
+		{
+			return WebDAVHelper.PathSeperator;
+		}
+		if (firstEscape == -1)
+		{
+			if (end - start > 1 && uri.charAt(end - 1) == WebDAVHelper.PathSeperatorChar)
+			{
+				end--;
+			}
+			return uri.substring(start, end);
+		}
+
+		char[] buf = new char[end - start];
+		int len = 0;
+		for (int i = start; i < end; i++)
+		{
+			char c = uri.charAt(i);
+			if (c != '%')
+			{
+				buf[len++] = c;
+				continue;
+			}
+
+			int b = octet(uri, i, end);
+			if (b < 0)
+			{
+				return null;
+			}
+			i += 2;
+			if (b < 0x80)
+			{
+				buf[len++] = (char) b;
+				continue;
+			}
+
+			int trailing;
+			int cp;
+			int min;
+			if ((b & 0xE0) == 0xC0)
+			{
+				trailing = 1;
+				cp = b & 0x1F;
+				min = 0x80;
+			}
+			else if ((b & 0xF0) == 0xE0)
+			{
+				trailing = 2;
+				cp = b & 0x0F;
+				min = 0x800;
+			}
+			else if ((b & 0xF8) == 0xF0)
+			{
+				trailing = 3;
+				cp = b & 0x07;
+				min = Character.MIN_SUPPLEMENTARY_CODE_POINT;
+			}
+			else
+			{
+				return null;
+			}
+			for (; trailing > 0; trailing--)
+			{
+				if (i + 1 >= end || uri.charAt(i + 1) != '%')
+				{
+					return null;
+				}
+				int t = octet(uri, i + 1, end);
+				if (t < 0 || (t & 0xC0) != 0x80)
+				{
+					return null;
+				}
+				cp = (cp << 6) | (t & 0x3F);
+				i += 3;
+			}
+			if (cp < min || cp > Character.MAX_CODE_POINT
+					|| (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+			{
+				// Overlong or invalid sequence
+				return null;
+			}
+			if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
+			{
+				// Two chars from twelve escaped ones, the buffer is large enough
+				cp -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+				buf[len++] = (char) (Character.MIN_HIGH_SURROGATE + (cp >> 10));
+				buf[len++] = (char) (Character.MIN_LOW_SURROGATE + (cp & 0x3FF));
+			}
+			else
+			{
+				buf[len++] = (char) cp;
+			}
+		}
+
+		// Make sure there are no trailing slashes
+		if (len > 1 && buf[len - 1] == WebDAVHelper.PathSeperatorChar)
+		{
+			len--;
+		}
+		return new String(buf, 0, len);
+	}
+
+	/**
+	 * @return the value of the escape <tt>%XX</tt> at <tt>pos</tt>, or -1 if it is malformed
+	 */
+	private static int octet(String s, int pos, int end)
+	{
+		if (pos + 2 >= end)
+		{
+			return -1;
+		}
+		int hi = Character.digit(s.charAt(pos + 1), 16);
+		int lo = Character.digit(s.charAt(pos + 2), 16);
+		return (hi < 0 || lo < 0) ? -1 : (hi << 4) | lo;
+	}
+}
@@ -0,0 +1,204 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.servlet.http.HttpSession;
+
+import org.alfresco.repo.webdav.LockInfo;
+import org.alfresco.repo.webdav.LockInfoImpl;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Lock store keeping the locks in memory, for single-node installations.
+ * <p>
+ * The locks are spread over <tt>shardCount</tt> maps, each guarded by its own read-write lock, so
+ * that requests on different documents do not contend. Locks are copied in and out so that callers
+ * can not change a stored lock without {@link #lock(NodeRef, LockInfo)}. As with the repository
+ * store, an expired lock is still returned until it is removed, so that an UNLOCK after the expiry
+ * still finds the lock and cleans up after it. Each shard sweeps its expired locks at most once a
+ * minute when written.
+ * <p>
+ * The locks are neither written to the repository nor shared with other cluster members, they are
+ * not visible to the other servlets and are lost when the server stops. Lock changes are not
+ * transactional either, a lock taken in a transaction that rolls back stays until it expires.
+ */
+public class ShardedLockStore implements LockStore, ShardedLockStoreMBean
+{
+	private static final long SWEEP_INTERVAL_MILLIS = 60000L;
+
+	private Shard[] m_shards = createShards(64);
+
+	private final AtomicLong m_expiredCount = new AtomicLong();
+
+	/**
+	 * @param shardCount the number of shards, rounded up to a power of two
+	 */
+	public void setShardCount(int shardCount)
+	{
+		m_shards = createShards(shardCount);
+	}
+
+	private static Shard[] createShards(int shardCount)
+	{
+		int count = 1;
+		while (count < shardCount)
+		{
+			count <<= 1;
+		}
+		Shard[] shards = new Shard[count];
+		for (int i = 0; i < count; i++)
+		{
+			shards[i] = new Shard();
+		}
+		return shards;
+	}
+
+	private Shard shardFor(NodeRef nodeRef)
+	{
+		int h = nodeRef.hashCode();
+		// Spread the high bits, the uuids of nodes created together share their low bits
+		h ^= (h >>> 16);
+		return m_shards[h & (m_shards.length - 1)];
+	}
+
+	public LockInfo getLockInfo(NodeRef nodeRef)
+	{
+		Shard shard = shardFor(nodeRef);
+		LockInfo lockInfo;
+		shard.rwLock.readLock().lock();
+		try
+		{
+			lockInfo = shard.locks.get(nodeRef);
+		}
+		finally
+		{
+			shard.rwLock.readLock().unlock();
+		}
+		return lockInfo == null ? null : copy(lockInfo);
+	}
+
+	public void lock(NodeRef nodeRef, LockInfo lockInfo)
+	{
+		LockInfo stored = copy(lockInfo);
+		Shard shard = shardFor(nodeRef);
+		shard.rwLock.writeLock().lock();
+		try
+		{
+			shard.locks.put(nodeRef, stored);
+			long now = System.currentTimeMillis();
+			if (now >= shard.nextSweep)
+			{
+				shard.nextSweep = now + SWEEP_INTERVAL_MILLIS;
+				sweep(shard);
+			}
+		}
+		finally
+		{
+			shard.rwLock.writeLock().unlock();
+		}
+	}
+
+	public void unlock(NodeRef nodeRef)
+	{
+		Shard shard = shardFor(nodeRef);
+		shard.rwLock.writeLock().lock();
+		try
+		{
+			shard.locks.remove(nodeRef);
+		}
+		finally
+		{
+			shard.rwLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Locks are not tied to sessions, they are only released by UNLOCK or expiry.
+	 */
+	public void setCurrentSession(HttpSession session)
+	{
+	}
+
+	public boolean isLocal()
+	{
+		return true;
+	}
+
+	/**
+	 * Drop the expired locks of a shard, the caller holds its write lock.
+	 */
+	private void sweep(Shard shard)
+	{
+		for (Iterator<Map.Entry<NodeRef, LockInfo>> it = shard.locks.entrySet().iterator(); it.hasNext();)
+		{
+			if (it.next().getValue().isExpired())
+			{
+				it.remove();
+				m_expiredCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @param lockInfo the lock
+	 * @return a copy of the lock that can be modified without affecting the original
+	 */
+	static LockInfo copy(LockInfo lockInfo)
+	{
+		LockInfoImpl copy = new LockInfoImpl();
+		copy.setExclusiveLockToken(lockInfo.getExclusiveLockToken());
+		Set<String> sharedLockTokens = lockInfo.getSharedLockTokens();
+		if (sharedLockTokens != null)
+		{
+			copy.setSharedLockTokens(new HashSet<String>(sharedLockTokens));
+		}
+		copy.setScope(lockInfo.getScope());
+		copy.setDepth(lockInfo.getDepth());
+		copy.setOwner(lockInfo.getOwner());
+		Date expires = lockInfo.getExpires();
+		copy.setExpires(expires == null ? null : new Date(expires.getTime()));
+		return copy;
+	}
+
+	public int getShardCount()
+	{
+		return m_shards.length;
+	}
+
+	public int getSize()
+	{
+		int size = 0;
+		for (Shard shard : m_shards)
+		{
+			shard.rwLock.readLock().lock();
+			try
+			{
+				size += shard.locks.size();
+			}
+			finally
+			{
+				shard.rwLock.readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	public long getExpiredCount()
+	{
+		return m_expiredCount.get();
+	}
+
+	private static final class Shard
+	{
+		private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+		private final Map<NodeRef, LockInfo> locks = new HashMap<NodeRef, LockInfo>();
+		private long nextSweep;
+	}
+}
@@ -0,0 +1,19 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link ShardedLockStore}
+ */
+public interface ShardedLockStoreMBean
+{
+	public int getShardCount();
+
+	/**
+	 * @return the number of locks held, including expired locks not swept yet
+	 */
+	public int getSize();
+
+	/**
+	 * @return the number of expired locks dropped by the store
+	 */
+	public long getExpiredCount();
+}
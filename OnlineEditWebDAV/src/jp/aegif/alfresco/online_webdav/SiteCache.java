@@ -0,0 +1,276 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.site.SiteService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Caches the site containing a node and the tenant domain of a user for activity posting.
+ * <p>
+ * {@link SiteService#getSiteShortName(NodeRef)} walks the ancestors of the node up to the site
+ * root, and every Office save posts an activity for the same few documents. Moving a node may move
+ * a whole subtree to another site, so any move clears the site cache; deleting a node drops its
+ * entry. Both are repeated once the transaction has committed, see {@link AfterCommitInvalidator},
+ * so that a site read by a concurrent request before the commit is not kept. Entries also expire
+ * after <tt>timeToLiveSeconds</tt> to pick up changes made on other cluster members.
+ */
+public class SiteCache implements SiteCacheMBean,
+		NodeServicePolicies.OnMoveNodePolicy,
+		NodeServicePolicies.BeforeDeleteNodePolicy
+{
+	private static Log logger = LogFactory.getLog(SiteCache.class);
+
+	private PolicyComponent m_policyComponent;
+	private SiteService m_siteService;
+	private TenantService m_tenantService;
+
+	private int m_maxEntries = 10000;
+	private long m_timeToLiveMillis = 600000L;
+
+	private final ConcurrentMap<NodeRef, Entry> m_sites = new ConcurrentHashMap<NodeRef, Entry>();
+	private final ConcurrentMap<String, String> m_tenantDomains = new ConcurrentHashMap<String, String>();
+
+	private final AtomicLong m_hitCount = new AtomicLong();
+	private final AtomicLong m_missCount = new AtomicLong();
+	private final AtomicLong m_moveInvalidationCount = new AtomicLong();
+
+	private final AfterCommitInvalidator<NodeRef> m_moveInvalidator = new AfterCommitInvalidator<NodeRef>(
+			new AfterCommitInvalidator.Target<NodeRef>()
+			{
+				public void invalidate(NodeRef nodeRef)
+				{
+					m_sites.clear();
+				}
+			});
+	private final AfterCommitInvalidator<NodeRef> m_deleteInvalidator = new AfterCommitInvalidator<NodeRef>(
+			new AfterCommitInvalidator.Target<NodeRef>()
+			{
+				public void invalidate(NodeRef nodeRef)
+				{
+					m_sites.remove(nodeRef);
+				}
+			});
+
+	public void setPolicyComponent(PolicyComponent policyComponent)
+	{
+		m_policyComponent = policyComponent;
+	}
+
+	public void setSiteService(SiteService siteService)
+	{
+		m_siteService = siteService;
+	}
+
+	public void setTenantService(TenantService tenantService)
+	{
+		m_tenantService = tenantService;
+	}
+
+	/**
+	 * @param maxEntries the maximum number of cached nodes and users
+	 */
+	public void setMaxEntries(int maxEntries)
+	{
+		m_maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param timeToLiveSeconds how long the site of a node is kept
+	 */
+	public void setTimeToLiveSeconds(long timeToLiveSeconds)
+	{
+		m_timeToLiveMillis = timeToLiveSeconds * 1000L;
+	}
+
+	public void init()
+	{
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "onMoveNode", NotificationFrequency.EVERY_EVENT));
+		m_policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_CMOBJECT,
+				new JavaBehaviour(this, "beforeDeleteNode", NotificationFrequency.EVERY_EVENT));
+	}
+
+	/**
+	 * @param nodeRef the node
+	 * @return the short name of the site containing the node, or {@link WebDAVHelper#EMPTY_SITE_ID}
+	 */
+	public String getSiteId(final NodeRef nodeRef)
+	{
+		long now = System.currentTimeMillis();
+		Entry entry = m_sites.get(nodeRef);
+		if (entry != null && now < entry.expiresAt)
+		{
+			m_hitCount.incrementAndGet();
+			return entry.siteId;
+		}
+		m_missCount.incrementAndGet();
+
+		String siteId;
+		try
+		{
+			// The entry is shared by all users, so resolve it regardless of the current user's access
+			siteId = AuthenticationUtil.runAsSystem(new RunAsWork<String>()
+			{
+				public String doWork() throws Exception
+				{
+					return m_siteService.getSiteShortName(nodeRef);
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			// Not cached, the failure may be transient
+			if (logger.isDebugEnabled())
+				logger.debug("Failed to determine the site of " + nodeRef, e);
+			return WebDAVHelper.EMPTY_SITE_ID;
+		}
+		if (siteId == null)
+		{
+			siteId = WebDAVHelper.EMPTY_SITE_ID;
+		}
+
+		if (m_maxEntries > 0 && m_timeToLiveMillis > 0)
+		{
+			if (m_sites.size() >= m_maxEntries)
+			{
+				evict(now);
+			}
+			m_sites.put(nodeRef, new Entry(siteId, now + m_timeToLiveMillis));
+		}
+		return siteId;
+	}
+
+	/**
+	 * @param userName the current user
+	 * @return the tenant domain of the user, {@link TenantService#DEFAULT_DOMAIN} if not in a tenant
+	 */
+	public String getTenantDomain(String userName)
+	{
+		String domain = userName == null ? null : m_tenantDomains.get(userName);
+		if (domain != null)
+		{
+			return domain;
+		}
+
+		domain = m_tenantService.getCurrentUserDomain();
+		if (domain == null)
+		{
+			domain = TenantService.DEFAULT_DOMAIN;
+		}
+		if (userName != null && m_maxEntries > 0)
+		{
+			if (m_tenantDomains.size() >= m_maxEntries)
+			{
+				m_tenantDomains.clear();
+			}
+			m_tenantDomains.put(userName, domain);
+		}
+		return domain;
+	}
+
+	public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef)
+	{
+		// Only a change of parent can change the site, renames keep it
+		if (!oldChildAssocRef.getParentRef().equals(newChildAssocRef.getParentRef()))
+		{
+			m_moveInvalidator.invalidate(newChildAssocRef.getChildRef());
+			m_moveInvalidationCount.incrementAndGet();
+		}
+	}
+
+	public void beforeDeleteNode(NodeRef nodeRef)
+	{
+		m_deleteInvalidator.invalidate(nodeRef);
+	}
+
+	public void clear()
+	{
+		m_sites.clear();
+		m_tenantDomains.clear();
+	}
+
+	/**
+	 * Drop expired entries and, if the cache is still full, an arbitrary tenth of the remaining ones.
+	 */
+	private void evict(long now)
+	{
+		for (Iterator<Entry> it = m_sites.values().iterator(); it.hasNext();)
+		{
+			if (now >= it.next().expiresAt)
+			{
+				it.remove();
+			}
+		}
+		if (m_sites.size() >= m_maxEntries)
+		{
+			int toRemove = Math.max(1, m_maxEntries / 10);
+			for (Iterator<Entry> it = m_sites.values().iterator(); it.hasNext() && toRemove > 0; toRemove--)
+			{
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	public long getHitCount()
+	{
+		return m_hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return m_missCount.get();
+	}
+
+	public long getMoveInvalidationCount()
+	{
+		return m_moveInvalidationCount.get();
+	}
+
+	public int getSiteCacheSize()
+	{
+		return m_sites.size();
+	}
+
+	public int getTenantCacheSize()
+	{
+		return m_tenantDomains.size();
+	}
+
+	public int getMaxEntries()
+	{
+		return m_maxEntries;
+	}
+
+	public long getTimeToLiveSeconds()
+	{
+		return m_timeToLiveMillis / 1000L;
+	}
+
+	private static final class Entry
+	{
+		private final String siteId;
+		private final long expiresAt;
+
+		private Entry(String siteId, long expiresAt)
+		{
+			this.siteId = siteId;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
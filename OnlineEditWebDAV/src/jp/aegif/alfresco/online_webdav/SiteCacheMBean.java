@@ -0,0 +1,26 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link SiteCache}
+ */
+public interface SiteCacheMBean
+{
+	public long getHitCount();
+
+	public long getMissCount();
+
+	/**
+	 * @return the number of times the site cache was cleared because a node was moved
+	 */
+	public long getMoveInvalidationCount();
+
+	public int getSiteCacheSize();
+
+	public int getTenantCacheSize();
+
+	public int getMaxEntries();
+
+	public long getTimeToLiveSeconds();
+
+	public void clear();
+}
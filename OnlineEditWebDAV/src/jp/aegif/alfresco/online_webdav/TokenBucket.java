@@ -0,0 +1,86 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Simple token bucket.
+ * <p>
+ * The bucket holds up to <tt>capacity</tt> tokens and is refilled continuously at
+ * <tt>refillPerSecond</tt> tokens per second.
+ */
+public final class TokenBucket
+{
+	private final double m_capacity;
+	private final double m_refillPerNano;
+
+	private double m_tokens;
+	private long m_lastRefill;
+
+	/**
+	 * @param capacity the maximum number of tokens, the bucket starts full
+	 * @param refillPerSecond the number of tokens added per second
+	 */
+	public TokenBucket(double capacity, double refillPerSecond)
+	{
+		m_capacity = capacity;
+		m_refillPerNano = refillPerSecond / 1000000000.0;
+		m_tokens = capacity;
+		m_lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Take a token if one is available.
+	 * 
+	 * @return true if a token was taken
+	 */
+	public synchronized boolean tryConsume()
+	{
+		refill(System.nanoTime());
+		if (m_tokens >= 1.0)
+		{
+			m_tokens -= 1.0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if no token is currently available
+	 */
+	public synchronized boolean isEmpty()
+	{
+		refill(System.nanoTime());
+		return m_tokens < 1.0;
+	}
+
+	/**
+	 * @return true if the bucket has refilled completely, i.e. it has been idle long enough to be discarded
+	 */
+	public synchronized boolean isFull()
+	{
+		refill(System.nanoTime());
+		return m_tokens >= m_capacity;
+	}
+
+	/**
+	 * @return the number of seconds until the next token is available, at least 1
+	 */
+	public synchronized int getSecondsUntilAvailable()
+	{
+		refill(System.nanoTime());
+		if (m_tokens >= 1.0 || m_refillPerNano <= 0)
+		{
+			return 1;
+		}
+		double nanos = (1.0 - m_tokens) / m_refillPerNano;
+		return Math.max(1, (int) Math.ceil(nanos / 1000000000.0));
+	}
+
+	private void refill(long now)
+	{
+		long elapsed = now - m_lastRefill;
+		if (elapsed > 0)
+		{
+			m_tokens = Math.min(m_capacity, m_tokens + elapsed * m_refillPerNano);
+			m_lastRefill = now;
+		}
+	}
+}
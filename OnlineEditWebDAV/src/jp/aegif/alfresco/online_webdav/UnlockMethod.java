@@ -150,7 +150,7 @@ public class UnlockMethod extends WebDAVMethod
 		try
 		{
 			//lockNodeInfo = getNodeForPath(getRootNodeRef(), getPath(), getServletPath());
-			lockNodeInfo = getDAVHelper().getFileInfoFromRequestPath(m_request);
+			lockNodeInfo = getNodeContext().getFileInfo();
 		}
 		catch (FileNotFoundException e)
 		{
@@ -166,7 +166,7 @@ public class UnlockMethod extends WebDAVMethod
 		}
 
 		NodeRef nodeRef = lockNodeInfo.getNodeRef();        
-		LockInfo lockInfo = getDAVLockService().getLockInfo(nodeRef);
+		LockInfo lockInfo = getNodeContext().getLockInfo();
 
 		if (lockInfo == null)
 		{
@@ -202,7 +202,8 @@ public class UnlockMethod extends WebDAVMethod
 			String currentUser = getAuthenticationService().getCurrentUserName();
 			if (currentUser.equals(lockInfo.getOwner()))
 			{
-				getDAVLockService().unlock(nodeRef);
+				getLockStore().unlock(nodeRef);
+				invalidateLockState(nodeRef);
 
 				// Indicate that the unlock was successful
 				m_response.setStatus(HttpServletResponse.SC_NO_CONTENT);            
@@ -256,11 +257,17 @@ public class UnlockMethod extends WebDAVMethod
 	// and tries to tidy down as it exits.
 	private void removeNoContentAspect(NodeRef nodeRef)
 	{
-		if (getNodeService().hasAspect(nodeRef, ContentModel.ASPECT_NO_CONTENT))
+		boolean noContent = getNodeContext().hasAspect(ContentModel.ASPECT_NO_CONTENT);
+		boolean webdavNoContent = getNodeContext().hasAspect(ContentModel.ASPECT_WEBDAV_NO_CONTENT);
+		if (noContent || webdavNoContent)
+		{
+			getNodeContext().invalidate();
+		}
+		if (noContent)
 		{
 			getNodeService().removeAspect(nodeRef, ContentModel.ASPECT_NO_CONTENT);
 		}
-		if (getNodeService().hasAspect(nodeRef, ContentModel.ASPECT_WEBDAV_NO_CONTENT))
+		if (webdavNoContent)
 		{
 			getNodeService().removeAspect(nodeRef, ContentModel.ASPECT_WEBDAV_NO_CONTENT);
 			getNodeService().deleteNode(nodeRef);
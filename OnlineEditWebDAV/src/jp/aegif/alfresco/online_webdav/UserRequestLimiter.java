@@ -0,0 +1,285 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Fair-share limiter keeping a single user from monopolising the online edit servlet.
+ * <p>
+ * Each user may have at most <tt>maxConcurrentPerUser</tt> requests in progress and may issue
+ * requests at <tt>requestsPerSecond</tt> with bursts of up to <tt>burst</tt>. Requests over either
+ * limit are refused and counted. The per user state lives in a lock-striped concurrent map; users
+ * with no request in progress that have been idle for <tt>idleTimeoutSeconds</tt> are evicted.
+ */
+public class UserRequestLimiter implements UserRequestLimiterMBean
+{
+	private static Log logger = LogFactory.getLog(UserRequestLimiter.class);
+
+	private int m_maxConcurrentPerUser = 8;
+	private double m_requestsPerSecond = 20;
+	private double m_burst = 40;
+	private long m_idleTimeoutMillis = 300000L;
+	private int m_maxUsers = 10000;
+
+	private final ConcurrentMap<String, UserLimit> m_users = new ConcurrentHashMap<String, UserLimit>(256, 0.75f, 64);
+	private final AtomicLong m_lastSweep = new AtomicLong(System.currentTimeMillis());
+
+	private final AtomicLong m_admitted = new AtomicLong();
+	private final AtomicLong m_concurrencyRejected = new AtomicLong();
+	private final AtomicLong m_rateRejected = new AtomicLong();
+	private final AtomicLong m_evictions = new AtomicLong();
+
+	/**
+	 * State of a single user, handed to the caller so that the request is released against the
+	 * same instance even if the user is evicted meanwhile
+	 */
+	public static final class UserLimit
+	{
+		// m_inFlight value of an instance removed by the sweep, no request may enter it any more
+		private static final int EVICTED = Integer.MIN_VALUE;
+
+		private final AtomicInteger m_inFlight = new AtomicInteger();
+		private final TokenBucket m_bucket;
+		private volatile long m_lastUsed;
+
+		private UserLimit(TokenBucket bucket, long now)
+		{
+			m_bucket = bucket;
+			m_lastUsed = now;
+		}
+
+		/**
+		 * Count a request in progress, unless the instance has been evicted.
+		 * 
+		 * @return the number of requests in progress including this one, or -1 if evicted
+		 */
+		private int enter()
+		{
+			for (;;)
+			{
+				int inFlight = m_inFlight.get();
+				if (inFlight == EVICTED)
+				{
+					return -1;
+				}
+				if (m_inFlight.compareAndSet(inFlight, inFlight + 1))
+				{
+					return inFlight + 1;
+				}
+			}
+		}
+
+		/**
+		 * @return true if the instance had no request in progress and may no longer be entered
+		 */
+		private boolean evict()
+		{
+			return m_inFlight.compareAndSet(0, EVICTED);
+		}
+
+		/**
+		 * Mark the end of a request admitted by {@link UserRequestLimiter#acquire(String)}
+		 */
+		public void release()
+		{
+			m_lastUsed = System.currentTimeMillis();
+			m_inFlight.decrementAndGet();
+		}
+
+		/**
+		 * @return the number of seconds until the user may issue another request, at least 1
+		 */
+		public int getRetryAfterSeconds()
+		{
+			return m_bucket.getSecondsUntilAvailable();
+		}
+	}
+
+	/**
+	 * @param maxConcurrentPerUser the number of requests a user may have in progress, 0 or less for no limit
+	 */
+	public void setMaxConcurrentPerUser(int maxConcurrentPerUser)
+	{
+		m_maxConcurrentPerUser = maxConcurrentPerUser;
+	}
+
+	/**
+	 * @param requestsPerSecond the sustained request rate allowed per user
+	 */
+	public void setRequestsPerSecond(double requestsPerSecond)
+	{
+		m_requestsPerSecond = requestsPerSecond;
+	}
+
+	/**
+	 * @param burst the number of requests a user may issue at once before the rate applies
+	 */
+	public void setBurst(double burst)
+	{
+		m_burst = burst;
+	}
+
+	/**
+	 * @param seconds how long an idle user is tracked
+	 */
+	public void setIdleTimeoutSeconds(long seconds)
+	{
+		m_idleTimeoutMillis = seconds * 1000L;
+	}
+
+	/**
+	 * @param maxUsers the number of tracked users above which idle users are evicted immediately
+	 */
+	public void setMaxUsers(int maxUsers)
+	{
+		m_maxUsers = maxUsers;
+	}
+
+	/**
+	 * Admit a request for the user.
+	 * 
+	 * @param userName the authenticated user
+	 * @return the user state to release when the request ends, or null if the request is refused
+	 */
+	public UserLimit acquire(String userName)
+	{
+		long now = System.currentTimeMillis();
+		sweepIfDue(now);
+
+		// Entering pins the instance, an instance evicted meanwhile is replaced by a fresh one
+		UserLimit limit;
+		int inFlight;
+		do
+		{
+			limit = getUserLimit(userName, now);
+			inFlight = limit.enter();
+		}
+		while (inFlight < 0);
+		limit.m_lastUsed = now;
+
+		if (inFlight > m_maxConcurrentPerUser && m_maxConcurrentPerUser > 0)
+		{
+			limit.m_inFlight.decrementAndGet();
+			m_concurrencyRejected.incrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("Too many concurrent requests for user " + userName);
+			return null;
+		}
+		if (!limit.m_bucket.tryConsume())
+		{
+			limit.m_inFlight.decrementAndGet();
+			m_rateRejected.incrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("Request rate exceeded for user " + userName);
+			return null;
+		}
+		m_admitted.incrementAndGet();
+		return limit;
+	}
+
+	/**
+	 * @param userName the authenticated user
+	 * @return the number of seconds a refused user should wait before retrying
+	 */
+	public int getRetryAfterSeconds(String userName)
+	{
+		UserLimit limit = m_users.get(userName);
+		return limit == null ? 1 : limit.getRetryAfterSeconds();
+	}
+
+	private UserLimit getUserLimit(String userName, long now)
+	{
+		UserLimit limit = m_users.get(userName);
+		if (limit == null)
+		{
+			if (m_users.size() >= m_maxUsers)
+			{
+				sweep(Long.MAX_VALUE);
+			}
+			UserLimit created = new UserLimit(new TokenBucket(m_burst, m_requestsPerSecond), now);
+			limit = m_users.putIfAbsent(userName, created);
+			if (limit == null)
+			{
+				limit = created;
+			}
+		}
+		return limit;
+	}
+
+	private void sweepIfDue(long now)
+	{
+		long last = m_lastSweep.get();
+		if (now - last >= m_idleTimeoutMillis && m_lastSweep.compareAndSet(last, now))
+		{
+			sweep(now);
+		}
+	}
+
+	/**
+	 * Evict the users with no request in progress that have been idle since before
+	 * <tt>now - idleTimeout</tt>, or all idle users if <tt>now</tt> is Long.MAX_VALUE
+	 */
+	private void sweep(long now)
+	{
+		for (Iterator<UserLimit> it = m_users.values().iterator(); it.hasNext();)
+		{
+			UserLimit limit = it.next();
+			if ((now == Long.MAX_VALUE || now - limit.m_lastUsed >= m_idleTimeoutMillis) && limit.evict())
+			{
+				it.remove();
+				m_evictions.incrementAndGet();
+			}
+		}
+	}
+
+	public void clear()
+	{
+		m_users.clear();
+	}
+
+	public int getMaxConcurrentPerUser()
+	{
+		return m_maxConcurrentPerUser;
+	}
+
+	public double getRequestsPerSecond()
+	{
+		return m_requestsPerSecond;
+	}
+
+	public double getBurst()
+	{
+		return m_burst;
+	}
+
+	public int getTrackedUserCount()
+	{
+		return m_users.size();
+	}
+
+	public long getAdmittedCount()
+	{
+		return m_admitted.get();
+	}
+
+	public long getConcurrencyRejectedCount()
+	{
+		return m_concurrencyRejected.get();
+	}
+
+	public long getRateRejectedCount()
+	{
+		return m_rateRejected.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return m_evictions.get();
+	}
+}
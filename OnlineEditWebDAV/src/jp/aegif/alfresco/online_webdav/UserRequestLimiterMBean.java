@@ -0,0 +1,37 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link UserRequestLimiter}
+ */
+public interface UserRequestLimiterMBean
+{
+	public int getMaxConcurrentPerUser();
+
+	public double getRequestsPerSecond();
+
+	public double getBurst();
+
+	/**
+	 * @return the number of users currently tracked
+	 */
+	public int getTrackedUserCount();
+
+	public long getAdmittedCount();
+
+	/**
+	 * @return the number of requests refused because the user had too many requests in progress
+	 */
+	public long getConcurrencyRejectedCount();
+
+	/**
+	 * @return the number of requests refused because the user exceeded the request rate
+	 */
+	public long getRateRejectedCount();
+
+	/**
+	 * @return the number of idle users evicted
+	 */
+	public long getEvictionCount();
+
+	public void clear();
+}
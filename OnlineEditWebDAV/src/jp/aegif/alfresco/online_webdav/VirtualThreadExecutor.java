@@ -0,0 +1,160 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Optional executor running each online edit request on its own virtual thread.
+ * <p>
+ * The WebDAV methods are written as blocking code. On a JDK providing
+ * <tt>Executors.newVirtualThreadPerTaskExecutor()</tt> the servlet can put the request into async
+ * mode and run it on a virtual thread, so that slow clients no longer hold a container thread.
+ * The executor is looked up reflectively; on older JDKs, or when disabled, requests keep running
+ * on the container thread. Requests also keep running on the container thread until
+ * <tt>web.xml</tt> declares async support, which the 2.3 DTD of the shipped one can not; the
+ * change needed is described in {@link AsyncContentStreamer}.
+ */
+public class VirtualThreadExecutor implements VirtualThreadExecutorMBean
+{
+	private static Log logger = LogFactory.getLog(VirtualThreadExecutor.class);
+
+	private boolean m_enabled = false;
+	private long m_timeoutMillis = 3600000L;
+
+	private ExecutorService m_executor;
+
+	private final AtomicInteger m_running = new AtomicInteger();
+	private final AtomicLong m_submitted = new AtomicLong();
+	private final AtomicLong m_fallback = new AtomicLong();
+
+	/**
+	 * @param enabled true to run requests on virtual threads when the JVM supports them
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		m_enabled = enabled;
+	}
+
+	/**
+	 * @param timeoutMillis the async timeout of a request running on a virtual thread
+	 */
+	public void setTimeoutMillis(long timeoutMillis)
+	{
+		m_timeoutMillis = timeoutMillis;
+	}
+
+	public long getTimeoutMillis()
+	{
+		return m_timeoutMillis;
+	}
+
+	public void init()
+	{
+		if (!m_enabled)
+		{
+			return;
+		}
+		try
+		{
+			Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			m_executor = (ExecutorService) factory.invoke(null);
+			if (logger.isInfoEnabled())
+				logger.info("Online edit requests run on virtual threads");
+		}
+		catch (NoSuchMethodException e)
+		{
+			logger.warn("Virtual threads are not supported by this JVM, online edit requests run on container threads");
+		}
+		catch (Exception e)
+		{
+			logger.warn("Failed to create the virtual thread executor, online edit requests run on container threads", e);
+		}
+	}
+
+	public void destroy()
+	{
+		if (m_executor != null)
+		{
+			m_executor.shutdown();
+			m_executor = null;
+		}
+	}
+
+	/**
+	 * Run the task on a new virtual thread.
+	 * 
+	 * @param task the request processing
+	 * @return false if the task could not be submitted and must be run by the caller
+	 */
+	public boolean execute(final Runnable task)
+	{
+		ExecutorService executor = m_executor;
+		if (executor == null)
+		{
+			return false;
+		}
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					m_running.incrementAndGet();
+					try
+					{
+						task.run();
+					}
+					finally
+					{
+						m_running.decrementAndGet();
+					}
+				}
+			});
+			m_submitted.incrementAndGet();
+			return true;
+		}
+		catch (RejectedExecutionException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Record a request that ran on the container thread although virtual threads are active
+	 */
+	public void fallback()
+	{
+		m_fallback.incrementAndGet();
+	}
+
+	public boolean isEnabled()
+	{
+		return m_enabled;
+	}
+
+	public boolean isActive()
+	{
+		return m_executor != null;
+	}
+
+	public int getRunningCount()
+	{
+		return m_running.get();
+	}
+
+	public long getSubmittedCount()
+	{
+		return m_submitted.get();
+	}
+
+	public long getFallbackCount()
+	{
+		return m_fallback.get();
+	}
+}
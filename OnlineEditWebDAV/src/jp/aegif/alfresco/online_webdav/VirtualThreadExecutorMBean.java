@@ -0,0 +1,26 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link VirtualThreadExecutor}
+ */
+public interface VirtualThreadExecutorMBean
+{
+	public boolean isEnabled();
+
+	/**
+	 * @return true if the JVM supports virtual threads and the executor is in use
+	 */
+	public boolean isActive();
+
+	/**
+	 * @return the number of requests currently running on virtual threads
+	 */
+	public int getRunningCount();
+
+	public long getSubmittedCount();
+
+	/**
+	 * @return the number of requests run on the container thread because async processing was not available
+	 */
+	public long getFallbackCount();
+}
@@ -0,0 +1,252 @@
+package jp.aegif.alfresco.online_webdav;
+
+import java.io.CharArrayWriter;
+import java.io.StringReader;
+import java.util.Date;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.alfresco.repo.webdav.WebDAV;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dom4j.DocumentHelper;
+import org.dom4j.io.OutputFormat;
+import org.dom4j.io.XMLWriter;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+
+/**
+ * Warm-up run by {@link OnlineWebDAVServlet#init(javax.servlet.ServletConfig)} before the servlet
+ * reports itself ready.
+ * <p>
+ * The first requests after a restart pay for class loading, JIT compilation, the
+ * DocumentBuilderFactory service lookup and dom4j initialisation. The warm-up exercises the
+ * repository independent part of each WebDAV method with synthetic input: handler creation,
+ * request URI parsing, XML request body parsing, multistatus and lock discovery generation, and URL
+ * and HTML encoding. A failing step is logged and never prevents the servlet from starting.
+ * <p>
+ * No WebDAV method is executed: node resolution, lock checks, content access and the repository
+ * transactions are first run by real requests. Ready therefore only means that the servlet is
+ * initialised and these steps have been loaded and run <tt>iterations</tt> times; whether the JIT
+ * has compiled them by then depends on the JVM and its thresholds, and the methods themselves are
+ * still cold.
+ */
+public class WarmUp implements WarmUpMBean
+{
+	private static Log logger = LogFactory.getLog(WarmUp.class);
+
+	private static final String PROPFIND_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+			+ "<D:propfind xmlns:D=\"DAV:\"><D:prop><D:getlastmodified/><D:getcontentlength/>"
+			+ "<D:resourcetype/><D:lockdiscovery/><D:supportedlock/></D:prop></D:propfind>";
+
+	private static final String LOCK_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+			+ "<D:lockinfo xmlns:D=\"DAV:\"><D:lockscope><D:exclusive/></D:lockscope>"
+			+ "<D:locktype><D:write/></D:locktype><D:owner><D:href>warmup</D:href></D:owner></D:lockinfo>";
+
+	private static final String PROPPATCH_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+			+ "<D:propertyupdate xmlns:D=\"DAV:\" xmlns:Z=\"urn:schemas-microsoft-com:\"><D:set><D:prop>"
+			+ "<Z:Win32LastModifiedTime>Mon, 01 Jan 2024 00:00:00 GMT</Z:Win32LastModifiedTime>"
+			+ "</D:prop></D:set></D:propertyupdate>";
+
+	private static final String[] REQUEST_URIS = {
+		"/alfresco/webdav2/TICKET_0123456789abcdef0123456789abcdef01234567/0b1c2d3e-4f50-6172-8394-a5b6c7d8e9f0.docx",
+		"/alfresco/webdav2/TICKET_0123456789abcdef0123456789abcdef01234567",
+		"/alfresco/webdav2/",
+		"/alfresco/webdav2/TICKET_0123456789abcdef0123456789abcdef01234567/%E6%97%A5%E6%9C%AC%E8%AA%9E.xlsx"
+	};
+
+	private boolean m_enabled = true;
+	private int m_iterations = 500;
+
+	private volatile boolean m_ready = false;
+	private volatile long m_warmUpMillis = 0L;
+	private volatile long m_failures = 0L;
+
+	/**
+	 * @param enabled false to skip the warm-up, the servlet is then ready as soon as it is initialised
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		m_enabled = enabled;
+	}
+
+	/**
+	 * @param iterations the number of times each step is run
+	 */
+	public void setIterations(int iterations)
+	{
+		m_iterations = iterations;
+	}
+
+	/**
+	 * Warm up the servlet and mark it ready.
+	 * 
+	 * @param methods the WebDAV method handler table of the servlet
+	 * @param davHelper the WebDAV helper
+	 */
+	public void run(Map<String, WebDAVMethodFactory> methods, WebDAVHelper davHelper)
+	{
+		m_ready = false;
+		if (m_enabled)
+		{
+			long start = System.currentTimeMillis();
+			long failures = 0L;
+			for (int i = 0; i < m_iterations; i++)
+			{
+				failures += runSteps(methods, davHelper, i);
+			}
+			m_failures = failures;
+			m_warmUpMillis = System.currentTimeMillis() - start;
+
+			if (logger.isInfoEnabled())
+				logger.info("Online edit WebDAV warm-up finished in " + m_warmUpMillis + "ms, " + failures + " failed steps");
+		}
+		m_ready = true;
+	}
+
+	/**
+	 * Mark the servlet as not ready, e.g. when it is taken out of service
+	 */
+	public void reset()
+	{
+		m_ready = false;
+	}
+
+	private int runSteps(Map<String, WebDAVMethodFactory> methods, WebDAVHelper davHelper, int iteration)
+	{
+		int failures = 0;
+
+		// Handler creation
+		try
+		{
+			for (WebDAVMethodFactory factory : methods.values())
+			{
+				factory.newMethod();
+			}
+		}
+		catch (Throwable e)
+		{
+			failures += failed("method creation", e, iteration);
+		}
+
+		// Request URI parsing and encoding
+		try
+		{
+			for (String uri : REQUEST_URIS)
+			{
+				OnlineRequestPath path = OnlineRequestPath.parse(uri);
+				path.getNodeRef();
+				String decoded = WebDAVHelper.decodeURL(uri);
+				WebDAVHelper.encodeURL(decoded);
+				WebDAVHelper.encodeHTML(decoded);
+			}
+		}
+		catch (Throwable e)
+		{
+			failures += failed("path parsing", e, iteration);
+		}
+
+		// Request body parsing, as done by getRequestBodyAsDocument
+		try
+		{
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			builder.parse(new InputSource(new StringReader(PROPFIND_BODY)));
+			builder.parse(new InputSource(new StringReader(LOCK_BODY)));
+			builder.parse(new InputSource(new StringReader(PROPPATCH_BODY)));
+		}
+		catch (Throwable e)
+		{
+			failures += failed("request body parsing", e, iteration);
+		}
+
+		// Response generation, as done by PROPFIND and LOCK
+		try
+		{
+			writeMultistatus(davHelper.getNullAttributes(), iteration);
+		}
+		catch (Throwable e)
+		{
+			failures += failed("response generation", e, iteration);
+		}
+
+		return failures;
+	}
+
+	private void writeMultistatus(Attributes nullAttr, int iteration) throws Exception
+	{
+		CharArrayWriter buffer = new CharArrayWriter(1024);
+		XMLWriter xml = new XMLWriter(buffer, OutputFormat.createPrettyPrint());
+		NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "0b1c2d3e-4f50-6172-8394-a5b6c7d8e9f0");
+
+		xml.startDocument();
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_MULTI_STATUS, WebDAV.XML_NS_MULTI_STATUS, nullAttr);
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_RESPONSE, WebDAV.XML_NS_RESPONSE, nullAttr);
+
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_HREF, WebDAV.XML_NS_HREF, nullAttr);
+		xml.write(WebDAVHelper.encodeURL(REQUEST_URIS[iteration % REQUEST_URIS.length]));
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_HREF, WebDAV.XML_NS_HREF);
+
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_PROPSTAT, WebDAV.XML_NS_PROPSTAT, nullAttr);
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_PROP, WebDAV.XML_NS_PROP, nullAttr);
+
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_GET_LAST_MODIFIED, WebDAV.XML_NS_GET_LAST_MODIFIED, nullAttr);
+		xml.write(WebDAV.formatModifiedDate(new Date()));
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_GET_LAST_MODIFIED, WebDAV.XML_NS_GET_LAST_MODIFIED);
+
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_LOCK_DISCOVERY, WebDAV.XML_NS_LOCK_DISCOVERY, nullAttr);
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_ACTIVE_LOCK, WebDAV.XML_NS_ACTIVE_LOCK, nullAttr);
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_LOCK_TYPE, WebDAV.XML_NS_LOCK_TYPE, nullAttr);
+		xml.write(DocumentHelper.createElement(WebDAV.XML_NS_WRITE));
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_LOCK_TYPE, WebDAV.XML_NS_LOCK_TYPE);
+		xml.startElement(WebDAV.DAV_NS, WebDAV.XML_LOCK_TOKEN, WebDAV.XML_NS_LOCK_TOKEN, nullAttr);
+		xml.write(WebDAV.makeLockToken(nodeRef, "warmup"));
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_LOCK_TOKEN, WebDAV.XML_NS_LOCK_TOKEN);
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_ACTIVE_LOCK, WebDAV.XML_NS_ACTIVE_LOCK);
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_LOCK_DISCOVERY, WebDAV.XML_NS_LOCK_DISCOVERY);
+
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_PROP, WebDAV.XML_NS_PROP);
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_PROPSTAT, WebDAV.XML_NS_PROPSTAT);
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_RESPONSE, WebDAV.XML_NS_RESPONSE);
+		xml.endElement(WebDAV.DAV_NS, WebDAV.XML_MULTI_STATUS, WebDAV.XML_NS_MULTI_STATUS);
+		xml.flush();
+	}
+
+	private int failed(String step, Throwable e, int iteration)
+	{
+		// Only report the first occurrence, the following ones fail the same way
+		if (iteration == 0 && logger.isWarnEnabled())
+			logger.warn("Online edit WebDAV warm-up step failed: " + step, e);
+		return 1;
+	}
+
+	public boolean isEnabled()
+	{
+		return m_enabled;
+	}
+
+	public int getIterations()
+	{
+		return m_iterations;
+	}
+
+	public boolean isReady()
+	{
+		return m_ready;
+	}
+
+	public long getWarmUpMillis()
+	{
+		return m_warmUpMillis;
+	}
+
+	public long getFailureCount()
+	{
+		return m_failures;
+	}
+}
@@ -0,0 +1,26 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Management interface of {@link WarmUp}
+ */
+public interface WarmUpMBean
+{
+	public boolean isEnabled();
+
+	public int getIterations();
+
+	/**
+	 * @return true once the online edit servlet has been initialised and the warm-up steps have run
+	 */
+	public boolean isReady();
+
+	/**
+	 * @return the time taken by the last warm-up
+	 */
+	public long getWarmUpMillis();
+
+	/**
+	 * @return the number of warm-up steps that failed
+	 */
+	public long getFailureCount();
+}
@@ -27,7 +27,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
@@ -38,6 +39,7 @@ import org.alfresco.model.ContentModel;
 import org.alfresco.repo.lock.LockUtils;
 import org.alfresco.repo.model.filefolder.HiddenAspect;
 import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.tenant.TenantService;
 import org.alfresco.repo.webdav.WebDAV;
 import org.alfresco.repo.webdav.WebDAVLockService;
@@ -53,17 +55,14 @@ import org.alfresco.service.cmr.repository.CopyService;
 import org.alfresco.service.cmr.repository.MimetypeService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
-import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
 import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.cmr.security.AuthenticationService;
 import org.alfresco.service.cmr.security.PermissionService;
-import org.alfresco.service.cmr.site.SiteService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.util.EqualsHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.extensions.surf.util.URLDecoder;
-import org.springframework.extensions.surf.util.URLEncoder;
 import org.springframework.util.StringUtils;
 import org.xml.sax.helpers.AttributesImpl;
 
@@ -92,6 +91,16 @@ public class WebDAVHelper
 	// Logging
 	protected static Log logger = LogFactory.getLog("org.alfresco.webdav.protocol");
 
+	// Buffer the hrefs of a multistatus response are built in, dropped if a long path made it grow
+	private static final int MAX_URL_BUFFER_CAPACITY = 4096;
+	private static final ThreadLocal<StringBuilder> s_urlBuffer = new ThreadLocal<StringBuilder>()
+	{
+		protected StringBuilder initialValue()
+		{
+			return new StringBuilder(256);
+		}
+	};
+
 	// Service registry TODO: eliminate this - not dependency injection!
 	private ServiceRegistry m_serviceRegistry;
 
@@ -103,6 +112,7 @@ public class WebDAVHelper
 	private DictionaryService m_dictionaryService;
 	private MimetypeService m_mimetypeService;
 	private WebDAVLockService m_lockService;
+	private LockStore m_lockStore;
 	private ActionService m_actionService;
 	private AuthenticationService m_authService;
 	private PermissionService m_permissionService;
@@ -120,6 +130,17 @@ public class WebDAVHelper
 	private BehaviourFilter m_policyBehaviourFilter;
 
 	private String m_urlPathPrefix;
+	// URL path prefixes discovered from requests, by servlet path
+	private final ConcurrentMap<String, String> m_urlPathPrefixes = new ConcurrentHashMap<String, String>();
+	private volatile RepositoryPathDecoder m_pathDecoder;
+
+	private AsyncContentStreamer m_asyncContentStreamer;
+
+	private FileInfoCache m_fileInfoCache;
+	private SiteCache m_siteCache;
+	private PathCache m_pathCache;
+	private LockHierarchyCache m_lockHierarchyCache;
+	private LockRefreshCoalescer m_lockRefreshCoalescer;
 
 	/**
 	 * Set the regular expression that will be applied to filenames during renames
@@ -205,6 +226,14 @@ public class WebDAVHelper
 		return m_lockService;
 	}
 
+	/**
+	 * @return          Return the store holding the WebDAV locks
+	 */
+	public LockStore getLockStore()
+	{
+		return m_lockStore;
+	}
+
 	/**
 	 * @return          Return the action service
 	 */
@@ -315,6 +344,19 @@ public class WebDAVHelper
 	public void setLockService(WebDAVLockService lockService)
 	{
 		this.m_lockService = lockService;
+		if (m_lockStore == null)
+		{
+			// Keep the locks in the repository unless another store is configured
+			m_lockStore = new RepositoryLockStore(lockService);
+		}
+	}
+
+	/**
+	 * @param lockStore the store holding the WebDAV locks
+	 */
+	public void setLockStore(LockStore lockStore)
+	{
+		this.m_lockStore = lockStore;
 	}
 
 	/**
@@ -360,6 +402,78 @@ public class WebDAVHelper
 		m_policyBehaviourFilter = behaviourFilter;
 	}
 
+	/**
+	 * @return the streamer sending GET content asynchronously, or null if not configured
+	 */
+	public AsyncContentStreamer getAsyncContentStreamer()
+	{
+		return m_asyncContentStreamer;
+	}
+
+	/**
+	 * @param asyncContentStreamer the streamer sending GET content asynchronously
+	 */
+	public void setAsyncContentStreamer(AsyncContentStreamer asyncContentStreamer)
+	{
+		m_asyncContentStreamer = asyncContentStreamer;
+	}
+
+	/**
+	 * @param fileInfoCache the cache used by {@link #getFileInfoFromRequestPath(HttpServletRequest)}
+	 */
+	public void setFileInfoCache(FileInfoCache fileInfoCache)
+	{
+		m_fileInfoCache = fileInfoCache;
+	}
+
+	/**
+	 * @param siteCache the cache used by {@link #determineSiteId(NodeRef)} and {@link #determineTenantDomain(WebDAVMethod)}
+	 */
+	public void setSiteCache(SiteCache siteCache)
+	{
+		m_siteCache = siteCache;
+	}
+
+	/**
+	 * @param pathCache the cache of path segments used by {@link #getNodeForPath(NodeRef, String)}
+	 */
+	public void setPathCache(PathCache pathCache)
+	{
+		m_pathCache = pathCache;
+	}
+
+	/**
+	 * @return the cache of ancestor links and folder locks used to find depth infinity locks
+	 */
+	public LockHierarchyCache getLockHierarchyCache()
+	{
+		return m_lockHierarchyCache;
+	}
+
+	/**
+	 * @param lockHierarchyCache the cache of ancestor links and folder locks used to find depth infinity locks
+	 */
+	public void setLockHierarchyCache(LockHierarchyCache lockHierarchyCache)
+	{
+		m_lockHierarchyCache = lockHierarchyCache;
+	}
+
+	/**
+	 * @return the write-behind table of lock refreshes, or null if refreshes are written immediately
+	 */
+	public LockRefreshCoalescer getLockRefreshCoalescer()
+	{
+		return m_lockRefreshCoalescer;
+	}
+
+	/**
+	 * @param lockRefreshCoalescer the write-behind table of lock refreshes
+	 */
+	public void setLockRefreshCoalescer(LockRefreshCoalescer lockRefreshCoalescer)
+	{
+		m_lockRefreshCoalescer = lockRefreshCoalescer;
+	}
+
 	/**
 	 * Checks a new path in a move operation to detect whether clients are starting a renaming shuffle - common during
 	 * file saving on various clients.
@@ -433,20 +547,19 @@ public class WebDAVHelper
 
 	public String getURLForPath(HttpServletRequest request, String path, boolean isCollection, String userAgent)
 	{
-		String urlPathPrefix = getUrlPathPrefix(request);
-		StringBuilder urlStr = new StringBuilder(urlPathPrefix);
+		StringBuilder urlStr = s_urlBuffer.get();
+		if (urlStr.capacity() > MAX_URL_BUFFER_CAPACITY)
+		{
+			urlStr = new StringBuilder(256);
+			s_urlBuffer.set(urlStr);
+		}
+		urlStr.setLength(0);
+		urlStr.append(getUrlPathPrefix(request));
 
 		if (path.equals(WebDAV.RootPath) == false)
 		{
 			// split the path and URL encode each path element
-			for (StringTokenizer t = new StringTokenizer(path, PathSeperator); t.hasMoreTokens(); /**/)
-			{
-				urlStr.append( WebDAVHelper.encodeURL(t.nextToken(), userAgent) );
-				if (t.hasMoreTokens())
-				{
-					urlStr.append(PathSeperator);
-				}
-			}
+			HrefEncoder.forUserAgent(userAgent).appendPath(urlStr, path);
 		}
 
 		// If the URL is to a collection add a trailing slash
@@ -455,7 +568,8 @@ public class WebDAVHelper
 			urlStr.append( PathSeperator);
 		}
 
-		logger.debug("getURLForPath() path:" + path + " => url:" + urlStr);
+		if (logger.isDebugEnabled())
+			logger.debug("getURLForPath() path:" + path + " => url:" + urlStr);
 
 		// Return the URL string
 		return urlStr.toString();
@@ -488,11 +602,33 @@ public class WebDAVHelper
 			return fileFolderService.getFileInfo(rootNodeRef);
 		}
 
-		// split the paths up
-		List<String> splitPath = splitAllPaths(path);
+		FileInfo fileInfo = null;
+		if (m_pathCache != null)
+		{
+			NodeRef nodeRef = m_pathCache.resolve(rootNodeRef, path);
+			if (nodeRef != null)
+			{
+				fileInfo = fileFolderService.getFileInfo(nodeRef);
+				// The cached segments may predate a rename, e.g. during the Office save shuffle
+				if (fileInfo != null && !fileInfo.getName().equalsIgnoreCase(getLastSegment(path)))
+				{
+					if (logger.isDebugEnabled())
+						logger.debug("Cached path " + path + " resolved to " + fileInfo.getName() + ", evicting");
+					m_pathCache.evict(rootNodeRef, path);
+					fileInfo = null;
+				}
+			}
+			// Not found or not readable, let resolveNamePath report it the usual way
+		}
 
-		// find it
-		FileInfo fileInfo = m_fileFolderService.resolveNamePath(rootNodeRef, splitPath);
+		if (fileInfo == null)
+		{
+			// split the paths up
+			List<String> splitPath = splitAllPaths(path);
+
+			// find it
+			fileInfo = m_fileFolderService.resolveNamePath(rootNodeRef, splitPath);
+		}
 
 		// done
 		if (logger.isDebugEnabled())
@@ -505,6 +641,20 @@ public class WebDAVHelper
 		return fileInfo;
 	}
 
+	/**
+	 * @param path a path, segments separated by <tt>/</tt>
+	 * @return the last non-empty segment of the path
+	 */
+	private static String getLastSegment(String path)
+	{
+		int end = path.length();
+		while (end > 0 && path.charAt(end - 1) == PathSeperatorChar)
+		{
+			end--;
+		}
+		return path.substring(path.lastIndexOf(PathSeperatorChar, end - 1) + 1, end);
+	}
+
 	public boolean isRootPath(String path, String servletPath)
 	{
 		// Check for the root path
@@ -583,11 +733,7 @@ public class WebDAVHelper
 	 */
 	public final String makeETag(FileInfo nodeInfo)
 	{
-		// Get the modify date/time property for the node
-
-		StringBuilder etag = new StringBuilder();
-		makeETagString(nodeInfo, etag);
-		return etag.toString();
+		return getETag(nodeInfo).getValue();
 	}
 
 	/**
@@ -595,30 +741,37 @@ public class WebDAVHelper
 	 */
 	public final String makeQuotedETag(FileInfo nodeInfo)
 	{
-		StringBuilder etag = new StringBuilder();
-
-		etag.append("\"");
-		makeETagString(nodeInfo, etag);
-		etag.append("\"");
-		return etag.toString();
+		return getETag(nodeInfo).getQuotedValue();
 	}
 
 	/**
-	 * Make an ETag value for a node using the GUID and modify date/time
+	 * Return the ETag of a node, reusing the one cached with the file info if there is one.
+	 * 
+	 * @param nodeInfo the node
+	 * @return ETag
 	 */
-	protected final void makeETagString(FileInfo nodeInfo, StringBuilder etag)
+	public ETag getETag(FileInfo nodeInfo)
 	{
-		// Get the modify date/time property for the node
-
-		Object modVal = nodeInfo.getProperties().get(ContentModel.PROP_MODIFIED);
-
-		etag.append(nodeInfo.getNodeRef().getId());
-
-		if ( modVal != null)
+		if (m_fileInfoCache != null)
 		{
-			etag.append("_");
-			etag.append(DefaultTypeConverter.INSTANCE.longValue(modVal));
+			ETag etag = m_fileInfoCache.getETag(nodeInfo, this);
+			if (etag != null)
+			{
+				return etag;
+			}
 		}
+		return createETag(nodeInfo);
+	}
+
+	/**
+	 * Create the ETag of a node. Override to use a different validator, e.g. a content hash.
+	 * 
+	 * @param nodeInfo the node
+	 * @return ETag
+	 */
+	protected ETag createETag(FileInfo nodeInfo)
+	{
+		return ETag.forVersion(nodeInfo);
 	}
 
 	/**
@@ -641,7 +794,7 @@ public class WebDAVHelper
 
 	public final static String encodeURL(String s, String userAgent)
 	{
-		return URLEncoder.encode(s);
+		return HrefEncoder.forUserAgent(userAgent).encode(s);
 	}
 
 	public final static String decodeURL(String s)
@@ -656,67 +809,7 @@ public class WebDAVHelper
 	 */
 	public final static String encodeHTML(String string)
 	{
-		if (string == null)
-		{
-			return "";
-		}
-
-		StringBuilder sb = null;      //create on demand
-		String enc;
-		char c;
-		for (int i = 0; i < string.length(); i++)
-		{
-			enc = null;
-			c = string.charAt(i);
-			switch (c)
-			{
-			case '"': enc = "&quot;"; break;    //"
-			case '&': enc = "&amp;"; break;     //&
-			case '<': enc = "&lt;"; break;      //<
-			case '>': enc = "&gt;"; break;      //>
-
-			//misc
-			case '\u20AC': enc = "&euro;";  break;
-			case '\u00AB': enc = "&laquo;"; break;
-			case '\u00BB': enc = "&raquo;"; break;
-			case '\u00A0': enc = "&nbsp;"; break;
-
-			default:
-				if (((int)c) >= 0x80)
-				{
-					//encode all non basic latin characters
-					enc = "&#" + ((int)c) + ";";
-				}
-				break;
-			}
-
-			if (enc != null)
-			{
-				if (sb == null)
-				{
-					String soFar = string.substring(0, i);
-					sb = new StringBuilder(i + 8);
-					sb.append(soFar);
-				}
-				sb.append(enc);
-			}
-			else
-			{
-				if (sb != null)
-				{
-					sb.append(c);
-				}
-			}
-		}
-
-		if (sb == null)
-		{
-			return string;
-		}
-		else
-		{
-			return sb.toString();
-		}
+		return HtmlEscaper.escape(string);
 	}
 
 	/**
@@ -733,86 +826,51 @@ public class WebDAVHelper
 		{
 			return "";
 		}
+		return HrefEncoder.MICROSOFT.encode(string);
+	}
 
-		StringBuilder sb = null;      // create on demand
-		String enc;
-		char c;
-		for (int i = 0; i < string.length(); i++)
+	public String determineSiteId(WebDAVMethod method)
+	{
+		// Online edit paths are uuid based, so resolve the site from the requested node rather than the path
+		NodeContext nodeContext = method.getNodeContext();
+		if (nodeContext == null)
 		{
-			enc = null;
-			c = string.charAt(i);
-			switch (c)
-			{
-			// reserved
-			case ';': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '/': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '?': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case ':': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '@': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '&': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '=': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '+': enc = URLEncoder.encode(String.valueOf(c)); break;
-
-			// unsafe
-			case '\"': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '#': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '%': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '>': enc = URLEncoder.encode(String.valueOf(c)); break;
-			case '<': enc = URLEncoder.encode(String.valueOf(c)); break;
-			default: break;
-			}
-
-			if (enc != null)
-			{
-				if (sb == null)
-				{
-					String soFar = string.substring(0, i);
-					sb = new StringBuilder(i + 8);
-					sb.append(soFar);
-				}
-				sb.append(enc);
-			}
-			else
-			{
-				if (sb != null)
-				{
-					sb.append(c);
-				}
-			}
+			return EMPTY_SITE_ID;
 		}
+		return determineSiteId(nodeContext.getNodeRef());
+	}
 
-		if (sb == null)
+	/**
+	 * @param nodeRef the node
+	 * @return the short name of the site containing the node, or {@link #EMPTY_SITE_ID} if it is not in a site
+	 */
+	public String determineSiteId(NodeRef nodeRef)
+	{
+		if (nodeRef == null)
 		{
-			return string;
+			return EMPTY_SITE_ID;
 		}
-		else
+		if (m_siteCache != null)
 		{
-			return sb.toString();
+			return m_siteCache.getSiteId(nodeRef);
 		}
-	}
-
-	public String determineSiteId(WebDAVMethod method)
-	{
-		SiteService siteService = getServiceRegistry().getSiteService();
-		String siteId;
 		try
 		{
-			FileInfo fileInfo = getNodeForPath(method.getRootNodeRef(), method.getPath());
-			siteId = siteService.getSiteShortName(fileInfo.getNodeRef());
-			if (siteId == null)
-			{
-				throw new RuntimeException("Node is not contained by a site: " + method.getPath());                
-			}
+			String siteId = getServiceRegistry().getSiteService().getSiteShortName(nodeRef);
+			return siteId == null ? EMPTY_SITE_ID : siteId;
 		}
 		catch (Exception error)
 		{
-			siteId = EMPTY_SITE_ID;
+			return EMPTY_SITE_ID;
 		}
-		return siteId;
 	}
 
 	public String determineTenantDomain(WebDAVMethod method)
 	{
+		if (m_siteCache != null)
+		{
+			return m_siteCache.getTenantDomain(AuthenticationUtil.getFullyAuthenticatedUser());
+		}
 		TenantService tenantService = getTenantService();
 		String tenantDomain = tenantService.getCurrentUserDomain();
 		if (tenantDomain == null)
@@ -987,9 +1045,29 @@ public class WebDAVHelper
 	public void setUrlPathPrefix(String urlPathPrefix)
 	{
 		m_urlPathPrefix = urlPathPrefix;
+		m_urlPathPrefixes.clear();
 	}
 
 	public String getUrlPathPrefix(HttpServletRequest request)
+	{
+		// The prefix only depends on the servlet path, check the request URI still starts with it
+		String servletPath = request.getServletPath();
+		String cached = m_urlPathPrefixes.get(servletPath);
+		if (cached != null)
+		{
+			if (StringUtils.hasText(m_urlPathPrefix)
+					|| request.getRequestURI().regionMatches(0, cached, 0, cached.length() - 1))
+			{
+				return cached;
+			}
+		}
+
+		String urlPathPrefix = makeUrlPathPrefix(request, servletPath);
+		m_urlPathPrefixes.put(servletPath, urlPathPrefix);
+		return urlPathPrefix;
+	}
+
+	private String makeUrlPathPrefix(HttpServletRequest request, String servletPath)
 	{
 		StringBuilder urlStr = null;
 		if (StringUtils.hasText(m_urlPathPrefix))
@@ -1004,7 +1082,6 @@ public class WebDAVHelper
 			// with a servlet path of "/servlet-mapping"
 			// would result in a path prefix of "/preamble/servlet-mapping" being discovered.
 			urlStr = new StringBuilder(request.getRequestURI());
-			String servletPath = request.getServletPath();
 
 			int rootPos = urlStr.indexOf(servletPath);
 			if (rootPos != -1)
@@ -1024,6 +1101,32 @@ public class WebDAVHelper
 
 	public String getRepositoryPath(HttpServletRequest request)
 	{
+		// The decoded path is computed once per request and kept with the parsed request URI
+		OnlineRequestPath requestPath = OnlineRequestPath.resolve(request);
+		String strPath = requestPath.getRepositoryPath();
+		if (strPath == null)
+		{
+			strPath = decodeRepositoryPath(request);
+			requestPath.setRepositoryPath(strPath);
+		}
+		return strPath;
+	}
+
+	private String decodeRepositoryPath(HttpServletRequest request)
+	{
+		String servletPath = request.getServletPath();
+		RepositoryPathDecoder pathDecoder = m_pathDecoder;
+		if (pathDecoder == null || !pathDecoder.getServletPath().equals(servletPath))
+		{
+			pathDecoder = new RepositoryPathDecoder(servletPath);
+			m_pathDecoder = pathDecoder;
+		}
+		String fastPath = pathDecoder.decode(request.getRequestURI());
+		if (fastPath != null)
+		{
+			return fastPath;
+		}
+
 		// Try and get the path
 
 		String strPath = null;
@@ -1036,8 +1139,6 @@ public class WebDAVHelper
 
 		// Find the servlet path and trim from the request path
 
-		String servletPath = request.getServletPath();
-
 		int rootPos = strPath.indexOf(servletPath);
 		if ( rootPos != -1)
 		{
@@ -1096,19 +1197,13 @@ public class WebDAVHelper
 	}
 
 	/**
+	 * Return the node addressed by an online edit request URI, <tt>/webdav2/{ticket}/{uuid}.{ext}</tt>.
 	 * 
 	 * @param request
+	 * @return the node, or null if the URI does not address a document
 	 */
 	public NodeRef getNodeRefFromRequestPath(HttpServletRequest request) {
-		String requestURI = request.getRequestURI();
-		Pattern p = Pattern.compile(".*/webdav2/(.*)/(.*)\\..*");
-		Matcher m = p.matcher(requestURI);
-		if ( m.matches() ) {
-			return new NodeRef("workspace://SpacesStore/" + m.group(2));
-		}
-		else {
-			return null;
-		}
+		return OnlineRequestPath.resolve(request).getNodeRef();
 	}
 
 	/**
@@ -1119,8 +1214,18 @@ public class WebDAVHelper
 		NodeRef node = getNodeRefFromRequestPath(request);
 		if ( node == null ) return null;
 
+		if ( m_fileInfoCache != null ) {
+			FileInfo cached = m_fileInfoCache.get(node);
+			if ( cached != null ) {
+				return cached;
+			}
+		}
+
 		try {
 			FileInfo fi =  m_fileFolderService.getFileInfo(node);    	
+			if ( fi != null && m_fileInfoCache != null ) {
+				m_fileInfoCache.put(node, fi);
+			}
 			return fi;
 		}
 		catch(net.sf.acegisecurity.AccessDeniedException ex) {
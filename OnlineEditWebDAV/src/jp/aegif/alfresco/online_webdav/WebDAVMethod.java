@@ -45,6 +45,9 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import jp.aegif.alfresco.online_webdav.metrics.RequestTimings;
+import jp.aegif.alfresco.online_webdav.metrics.RequestTimings.Phase;
+
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.model.filefolder.HiddenAspect;
 import org.alfresco.repo.model.filefolder.HiddenAspect.Visibility;
@@ -56,14 +59,12 @@ import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransacti
 import org.alfresco.repo.webdav.LockInfo;
 import org.alfresco.repo.webdav.LockInfoImpl;
 import org.alfresco.repo.webdav.WebDAV;
-import org.alfresco.repo.webdav.WebDAVLockService;
 import org.alfresco.repo.webdav.WebDAVServerException;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.action.ActionService;
 import org.alfresco.service.cmr.model.FileFolderService;
 import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.model.FileNotFoundException;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.MimetypeService;
 import org.alfresco.service.cmr.repository.NodeRef;
@@ -137,6 +138,14 @@ public abstract class WebDAVMethod
 
 	protected NodeRef m_rootNodeRef;
 
+	// Parsed request URI
+
+	protected OnlineRequestPath m_requestPath = null;
+
+	// Repository state of the requested node
+
+	protected NodeContext m_nodeContext = null;
+
 	// Repository path
 
 	protected String m_strPath = null;
@@ -157,9 +166,9 @@ public abstract class WebDAVMethod
 
 	protected int m_depth = WebDAV.DEPTH_INFINITY;
 
-	// request scope
-	protected Map<NodeRef, NodeRef> m_childToParent = new HashMap<NodeRef, NodeRef>();
-	protected Map<NodeRef, LockInfo> m_parentLockInfo = new HashMap<NodeRef, LockInfo>();
+	// Phase timings of this request
+
+	protected RequestTimings m_timings = new RequestTimings();
 
 	private String siteId;
 
@@ -286,7 +295,27 @@ public abstract class WebDAVMethod
 		this.m_davHelper = davHelper;
 		this.m_rootNodeRef = rootNode;
 
+		this.m_requestPath = OnlineRequestPath.resolve(req);
 		this.m_strPath = m_davHelper.getRepositoryPath(m_request);
+		this.m_nodeContext = new NodeContext(m_davHelper, m_request, m_requestPath.getNodeRef());
+	}
+
+	/**
+	 * Set the object collecting the phase timings of this request
+	 * 
+	 * @param timings RequestTimings
+	 */
+	public void setTimings(RequestTimings timings)
+	{
+		this.m_timings = timings;
+	}
+
+	/**
+	 * @return the phase timings of this request
+	 */
+	public final RequestTimings getTimings()
+	{
+		return m_timings;
 	}
 
 	private File getRequestBodyAsFile(HttpServletRequest req) throws IOException
@@ -295,7 +324,9 @@ public abstract class WebDAVMethod
 		{
 			this.m_requestBody = TempFileProvider.createTempFile("webdav_" + req.getMethod() + "_", ".bin");
 			OutputStream out = new FileOutputStream(this.m_requestBody);
+			long spoolStart = System.nanoTime();
 			int bytesRead = FileCopyUtils.copy(req.getInputStream(), out);
+			m_timings.add(Phase.SPOOL_BODY, System.nanoTime() - spoolStart);
 
 			// ALF-7377: check for corrupt request
 			int contentLength = req.getIntHeader(WebDAV.HEADER_CONTENT_LENGTH);
@@ -336,9 +367,18 @@ public abstract class WebDAVMethod
 	public void execute() throws WebDAVServerException
 	{
 		// Parse the HTTP headers
-		parseRequestHeaders();
+		long phaseStart = System.nanoTime();
+		try
+		{
+			parseRequestHeaders();
+		}
+		finally
+		{
+			m_timings.add(Phase.PARSE_HEADERS, System.nanoTime() - phaseStart);
+		}
 
 		// Parse the HTTP body
+		phaseStart = System.nanoTime();
 		try
 		{
 			parseRequestBody();
@@ -379,6 +419,10 @@ public abstract class WebDAVMethod
 				throw e;
 			}
 		}
+		finally
+		{
+			m_timings.add(Phase.PARSE_BODY, System.nanoTime() - phaseStart);
+		}
 
 		m_userAgent = m_request.getHeader(WebDAV.HEADER_USER_AGENT);
 
@@ -386,12 +430,17 @@ public abstract class WebDAVMethod
 		{
 			public Object execute() throws Exception
 			{
+				m_timings.transactionAttempt();
+
+				// Node state read by a failed attempt must not leak into the retry
+				m_nodeContext.invalidate();
+
 				// Reset the request input stream / reader state
 				WebDAVMethod.this.m_inputStream = null;
 				WebDAVMethod.this.m_reader = null;
 
 				// cache current session
-				getDAVHelper().getLockService().setCurrentSession(m_request.getSession());
+				getLockStore().setCurrentSession(m_request.getSession());
 
 				executeImpl();
 				return null;
@@ -401,8 +450,18 @@ public abstract class WebDAVMethod
 		{
 			boolean isReadOnly = isReadOnly();
 			// Execute the method
-			getTransactionService().getRetryingTransactionHelper().doInTransaction(executeImplCallback, isReadOnly);
+			phaseStart = System.nanoTime();
+			try
+			{
+				getTransactionService().getRetryingTransactionHelper().doInTransaction(executeImplCallback, isReadOnly);
+			}
+			finally
+			{
+				m_timings.add(Phase.TRANSACTION, System.nanoTime() - phaseStart);
+			}
+			phaseStart = System.nanoTime();
 			generateResponseImpl();
+			m_timings.add(Phase.GENERATE_RESPONSE, System.nanoTime() - phaseStart);
 		}
 		catch (AccessDeniedException e)
 		{
@@ -460,6 +519,11 @@ public abstract class WebDAVMethod
 		finally
 		{
 			cleanUp();
+
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("Node lookups for " + m_request.getMethod() + ": " + m_nodeContext.getLoadCount());
+			}
 		}
 	}
 
@@ -777,13 +841,13 @@ public abstract class WebDAVMethod
 	}
 
 	/**
-	 * Retrieve the (WebDAV protocol-level) locking service.
+	 * Retrieve the store holding the (WebDAV protocol-level) locks.
 	 * 
-	 * @return WebDAVLockService
+	 * @return LockStore
 	 */
-	protected final WebDAVLockService getDAVLockService()
+	protected final LockStore getLockStore()
 	{
-		return m_davHelper.getLockService();
+		return m_davHelper.getLockStore();
 	}
 
 	/**
@@ -842,6 +906,54 @@ public abstract class WebDAVMethod
 		return m_rootNodeRef;
 	}
 
+	/**
+	 * Return the parsed request URI, shared with the authentication filter
+	 * 
+	 * @return OnlineRequestPath
+	 */
+	protected final OnlineRequestPath getRequestPath()
+	{
+		return m_requestPath;
+	}
+
+	/**
+	 * Return the repository state of the node addressed by the request
+	 * 
+	 * @return NodeContext
+	 */
+	protected final NodeContext getNodeContext()
+	{
+		return m_nodeContext;
+	}
+
+	/**
+	 * Drop the lock state of a node memoized for this request and shared with other requests, after
+	 * the node has been locked, refreshed or unlocked.
+	 * 
+	 * @param nodeRef the node
+	 */
+	protected final void invalidateLockState(NodeRef nodeRef)
+	{
+		invalidateLockState(nodeRef, true);
+	}
+
+	/**
+	 * Drop the lock state of a node memoized for this request and shared with other requests.
+	 * 
+	 * @param nodeRef the node
+	 * @param forgetRefresh false to keep a refresh just recorded by the {@link LockRefreshCoalescer}
+	 */
+	protected final void invalidateLockState(NodeRef nodeRef, boolean forgetRefresh)
+	{
+		m_nodeContext.invalidate();
+		getDAVHelper().getLockHierarchyCache().invalidateLock(nodeRef);
+		LockRefreshCoalescer coalescer = getDAVHelper().getLockRefreshCoalescer();
+		if (forgetRefresh && coalescer != null)
+		{
+			coalescer.forget(nodeRef);
+		}
+	}
+
 	/**
 	 * Return the relative path
 	 * 
@@ -1020,7 +1132,7 @@ public abstract class WebDAVMethod
 			throw new WebDAVServerException(WebDAV.WEBDAV_SC_LOCKED);
 		}
 		
-		String nodeETag = getDAVHelper().makeQuotedETag(fileInfo);
+		ETag nodeETag = getDAVHelper().getETag(fileInfo);
 		// Handle the case where there are no conditions and no lock token stored on the node. Node just needs to be writable with no shared locks
 		if (m_conditions == null)
 		{            
@@ -1142,7 +1254,7 @@ public abstract class WebDAVMethod
 	 * @param nodeETag               - node's ETag
 	 * @throws WebDAVServerException if conditions fail
 	 */
-	private void checkConditions(String nodeLockToken, String nodeETag) throws WebDAVServerException
+	private void checkConditions(String nodeLockToken, ETag nodeETag) throws WebDAVServerException
 	{
 		// Checks If header conditions.
 		// Each condition can contain check of ETag and check of Lock token.
@@ -1165,12 +1277,12 @@ public abstract class WebDAVMethod
 			// Check ETags that should match
 			if (condition.getETagsMatch() != null)
 			{
-				fMatchETag = condition.getETagsMatch().contains(nodeETag) ? true : false;
+				fMatchETag = nodeETag.matchesAny(condition.getETagsMatch());
 			}
 			// Check ETags that shouldn't match
 			if (condition.getETagsNotMatch() != null)
 			{
-				fMatchETag = condition.getETagsNotMatch().contains(nodeETag) ? false : true;
+				fMatchETag = !nodeETag.matchesAny(condition.getETagsNotMatch());
 			}
 			// Check lock tokens that should match
 			if (condition.getLockTokensMatch() != null)
@@ -1226,72 +1338,19 @@ public abstract class WebDAVMethod
 
 		// ALF-13472: In accordance with http://www.webdav.org/specs/rfc2518.html#rfc.section.8.10.4 lock of collection causes locking each resource within it.
 		// It should be possible to receive information about direct or indirect lock because it is one of the states of requested resource.
+		// The ancestor chain and folder locks are shared across requests by the lock hierarchy cache.
 		return AuthenticationUtil.runAsSystem(new RunAsWork<LockInfo>()
 				{
 			@Override
 			public LockInfo doWork() throws Exception
 			{
-				NodeService nodeService = getNodeService();
-
-				NodeRef node = nodeInfo.getNodeRef();
-
-				while (true)
+				LockInfo lockInfo = getDAVHelper().getLockHierarchyCache().getInheritedLock(nodeInfo.getNodeRef());
+				if (lockInfo == null)
 				{
-					NodeRef parent = m_childToParent.get(node);
-
-					if ((parent == null) && (! m_childToParent.containsKey(node)))
-					{
-						ChildAssociationRef childAssocRef = nodeService.getPrimaryParent(node);
-						parent = childAssocRef.getParentRef();
-
-						if (! childAssocRef.getTypeQName().equals(ContentModel.ASSOC_CONTAINS))
-						{
-							parent = null;
-						}
-
-						// temporarily cache - for this request
-						m_childToParent.put(node, parent);
-					}
-
-					if (parent == null)
-					{
-						// Node has no lock and Lock token
-						return new LockInfoImpl();
-					}
-
-					LockInfo lockInfo = m_parentLockInfo.get(parent);
-
-					if (lockInfo != null)
-					{
-						if (lockInfo.isLocked())
-						{
-							return lockInfo;
-						}
-					}
-
-					if (lockInfo == null)
-					{
-						try
-						{
-							lockInfo = getNodeLockInfoIndirect(parent);
-							if (lockInfo != null)
-							{
-								return lockInfo;
-							}
-						}
-						finally
-						{
-							if (lockInfo == null)
-							{
-								lockInfo = new LockInfoImpl();
-							}
-							// temporarily cache - for this request
-							m_parentLockInfo.put(parent, lockInfo);
-						}
-					}
-
-					node = parent;
-				} // end while
+					// Node has no lock and Lock token
+					return new LockInfoImpl();
+				}
+				return lockInfo;
 			}
 				});
 
@@ -1306,7 +1365,9 @@ public abstract class WebDAVMethod
 	 */
 	private LockInfo getNodeLockInfoDirect(FileInfo nodeInfo)
 	{
-		LockInfo lock = getDAVLockService().getLockInfo(nodeInfo.getNodeRef());
+		NodeRef nodeRef = nodeInfo.getNodeRef();
+		LockInfo lock = nodeRef.equals(m_nodeContext.getNodeRef()) ? m_nodeContext.getLockInfo()
+				: getLockStore().getLockInfo(nodeRef);
 
 		if (lock == null)
 		{
@@ -1321,46 +1382,6 @@ public abstract class WebDAVMethod
 
 	}
 
-	/**
-	 * Checks whether a parent node has a lock that is valid for all its descendants.
-	 * 
-	 * @param parent
-	 * @return The LockInfo if the node is <strong>locked</strong>, or null otherwise.
-	 */
-	private LockInfo getNodeLockInfoIndirect(NodeRef parent)
-	{
-		LockInfo parentLock = getDAVLockService().getLockInfo(parent);
-
-		if (parentLock == null)
-		{
-			return null;
-		}
-
-		// In this case node is locked indirectly.
-		if (parentLock.isLocked() && WebDAV.INFINITY.equals(parentLock.getDepth()))
-		{
-			// In this case node is locked indirectly.
-			//Get lock scope
-			// Get shared lock tokens
-
-			// Store lock information to the lockInfo object
-
-			// Get lock token of the locked node - this is indirect lock token.
-
-			return parentLock;
-		}
-		return null;
-
-		// No has no exclusive lock but can be locked with shared lock
-		// Check node lock depth.
-		// If depth is WebDAV.INFINITY then return this node's Lock token.
-		// In this case node is locked indirectly.
-
-		//Get lock scope
-
-		// Node has it's own Lock token.
-	}
-
 	/**
 	 * Get the file info for the given paths
 	 * 
@@ -1404,6 +1425,7 @@ public abstract class WebDAVMethod
 	 */
 	protected final void flushXML(XMLWriter writer) throws IOException
 	{
+		long flushStart = System.nanoTime();
 		if (shouldFlushXMLWriter())
 		{
 			writer.flush();
@@ -1412,6 +1434,7 @@ public abstract class WebDAVMethod
 		m_response.getWriter().write(m_xmlWriter.toCharArray());
 
 		m_xmlWriter.reset();
+		m_timings.add(Phase.FLUSH_XML, System.nanoTime() - flushStart);
 	}
 
 	/**
@@ -1603,7 +1626,7 @@ public abstract class WebDAVMethod
 	{
 		if (siteId == null)
 		{
-			siteId = getDAVHelper().determineSiteId(this);
+			siteId = m_nodeContext.getSiteId();
 		}
 		return siteId;
 	}
@@ -0,0 +1,15 @@
+package jp.aegif.alfresco.online_webdav;
+
+/**
+ * Creates the handler for one WebDAV method.
+ * <p>
+ * {@link OnlineWebDAVServlet} keeps an immutable table of factories keyed by HTTP method, built once in
+ * <code>init()</code>, and asks the factory for a new handler on every request.
+ */
+public interface WebDAVMethodFactory
+{
+	/**
+	 * @return a new, unconfigured method handler
+	 */
+	public WebDAVMethod newMethod();
+}
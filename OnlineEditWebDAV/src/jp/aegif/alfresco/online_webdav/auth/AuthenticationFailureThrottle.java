@@ -0,0 +1,203 @@
+package jp.aegif.alfresco.online_webdav.auth;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.aegif.alfresco.online_webdav.TokenBucket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Remembers failed ticket validations so that repeated failures are answered from memory.
+ * <p>
+ * Office clients retry requests carrying an expired or unknown ticket in tight loops. Tickets that
+ * failed validation are kept in a short-lived negative cache, and every failure takes a token from a
+ * bucket kept per client address and ticket. Once a client has used up the bucket of a ticket, that
+ * ticket is refused without asking the repository, also after it has left the negative cache. The
+ * bucket is not shared by the whole address, so users with valid tickets behind the same NAT or
+ * proxy as a failing client are not throttled.
+ */
+public class AuthenticationFailureThrottle implements AuthenticationFailureThrottleMBean {
+
+	private static Log logger = LogFactory.getLog(AuthenticationFailureThrottle.class);
+
+	private long rejectedTicketTimeToLiveMillis = 30000L;
+	private int maxRejectedTickets = 10000;
+	private int maxClients = 10000;
+	private double failureBurst = 20;
+	private double failuresPerSecond = 1;
+
+	private final ConcurrentMap<String, Long> rejectedTickets = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, TokenBucket> clients = new ConcurrentHashMap<String, TokenBucket>();
+
+	private final AtomicLong rejectedTicketCount = new AtomicLong();
+	private final AtomicLong throttledRequestCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+
+	/**
+	 * @param seconds how long a ticket that failed validation is refused without validating it again
+	 */
+	public void setRejectedTicketTimeToLiveSeconds(long seconds) {
+		this.rejectedTicketTimeToLiveMillis = seconds * 1000L;
+	}
+
+	/**
+	 * @param maxRejectedTickets the maximum number of remembered failed tickets
+	 */
+	public void setMaxRejectedTickets(int maxRejectedTickets) {
+		this.maxRejectedTickets = maxRejectedTickets;
+	}
+
+	/**
+	 * @param maxClients the maximum number of client address and ticket pairs tracked
+	 */
+	public void setMaxClients(int maxClients) {
+		this.maxClients = maxClients;
+	}
+
+	/**
+	 * @param failureBurst the number of failures a client may cause with a ticket before it is throttled
+	 */
+	public void setFailureBurst(double failureBurst) {
+		this.failureBurst = failureBurst;
+	}
+
+	/**
+	 * @param failuresPerSecond the sustained failure rate allowed per client and ticket
+	 */
+	public void setFailuresPerSecond(double failuresPerSecond) {
+		this.failuresPerSecond = failuresPerSecond;
+	}
+
+	/**
+	 * @param ticket the path ticket
+	 * @return true if the ticket recently failed validation
+	 */
+	public boolean isRejectedTicket(String ticket) {
+		Long expiresAt = rejectedTickets.get(ticket);
+		if ( expiresAt == null ) {
+			return false;
+		}
+		if ( System.currentTimeMillis() >= expiresAt.longValue() ) {
+			rejectedTickets.remove(ticket, expiresAt);
+			return false;
+		}
+		rejectedTicketCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @param clientAddress the remote address of the request
+	 * @param ticket the path ticket
+	 * @return true if the client has caused too many failures with the ticket and must back off
+	 */
+	public boolean isThrottled(String clientAddress, String ticket) {
+		TokenBucket bucket = clients.get(clientKey(clientAddress, ticket));
+		if ( bucket != null && bucket.isEmpty() ) {
+			throttledRequestCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param clientAddress the remote address of the request
+	 * @param ticket the path ticket
+	 * @return the number of seconds a throttled client should wait before retrying
+	 */
+	public int getRetryAfterSeconds(String clientAddress, String ticket) {
+		TokenBucket bucket = clients.get(clientKey(clientAddress, ticket));
+		return bucket == null ? 1 : bucket.getSecondsUntilAvailable();
+	}
+
+	/**
+	 * Record a failed ticket validation.
+	 *
+	 * @param ticket the path ticket
+	 * @param clientAddress the remote address of the request
+	 */
+	public void recordFailure(String ticket, String clientAddress) {
+		failureCount.incrementAndGet();
+		long now = System.currentTimeMillis();
+
+		if ( ticket != null && rejectedTicketTimeToLiveMillis > 0 ) {
+			if ( rejectedTickets.size() >= maxRejectedTickets ) {
+				purgeRejectedTickets(now);
+			}
+			rejectedTickets.put(ticket, Long.valueOf(now + rejectedTicketTimeToLiveMillis));
+		}
+
+		if ( clientAddress != null ) {
+			String key = clientKey(clientAddress, ticket);
+			TokenBucket bucket = clients.get(key);
+			if ( bucket == null ) {
+				if ( clients.size() >= maxClients ) {
+					purgeClients();
+				}
+				TokenBucket created = new TokenBucket(failureBurst, failuresPerSecond);
+				bucket = clients.putIfAbsent(key, created);
+				if ( bucket == null ) {
+					bucket = created;
+				}
+			}
+			if ( !bucket.tryConsume() && logger.isDebugEnabled() ) {
+				logger.debug("client throttled:" + clientAddress);
+			}
+		}
+	}
+
+	private static String clientKey(String clientAddress, String ticket) {
+		return ticket == null ? clientAddress : clientAddress + ' ' + ticket;
+	}
+
+	public void clear() {
+		rejectedTickets.clear();
+		clients.clear();
+	}
+
+	private void purgeRejectedTickets(long now) {
+		for ( Iterator<Long> it = rejectedTickets.values().iterator(); it.hasNext(); ) {
+			if ( now >= it.next().longValue() ) {
+				it.remove();
+			}
+		}
+		if ( rejectedTickets.size() >= maxRejectedTickets ) {
+			rejectedTickets.clear();
+		}
+	}
+
+	private void purgeClients() {
+		//buckets that have refilled completely carry no state
+		for ( Iterator<TokenBucket> it = clients.values().iterator(); it.hasNext(); ) {
+			if ( it.next().isFull() ) {
+				it.remove();
+			}
+		}
+		if ( clients.size() >= maxClients ) {
+			clients.clear();
+		}
+	}
+
+	public long getRejectedTicketCount() {
+		return rejectedTicketCount.get();
+	}
+
+	public long getThrottledRequestCount() {
+		return throttledRequestCount.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	public int getRejectedTicketCacheSize() {
+		return rejectedTickets.size();
+	}
+
+	public int getTrackedClientCount() {
+		return clients.size();
+	}
+}
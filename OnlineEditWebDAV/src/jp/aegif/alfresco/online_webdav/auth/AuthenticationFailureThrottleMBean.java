@@ -0,0 +1,19 @@
+package jp.aegif.alfresco.online_webdav.auth;
+
+/**
+ * Management interface of {@link AuthenticationFailureThrottle}
+ */
+public interface AuthenticationFailureThrottleMBean {
+
+	public long getRejectedTicketCount();
+
+	public long getThrottledRequestCount();
+
+	public long getFailureCount();
+
+	public int getRejectedTicketCacheSize();
+
+	public int getTrackedClientCount();
+
+	public void clear();
+}
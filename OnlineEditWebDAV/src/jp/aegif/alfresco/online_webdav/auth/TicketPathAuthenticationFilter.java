@@ -1,8 +1,6 @@
 package jp.aegif.alfresco.online_webdav.auth;
 
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletContext;
@@ -12,6 +10,12 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import jp.aegif.alfresco.online_webdav.OnlineRequestPath;
+import net.sf.acegisecurity.Authentication;
+
+import org.alfresco.repo.security.authentication.AuthenticationException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.TicketComponent;
 import org.alfresco.repo.web.filter.beans.DependencyInjectedFilter;
 import org.alfresco.repo.webdav.auth.BaseAuthenticationFilter;
 import org.apache.commons.logging.Log;
@@ -21,6 +25,33 @@ public class TicketPathAuthenticationFilter extends BaseAuthenticationFilter imp
 
 	private static Log logger = LogFactory.getLog(TicketPathAuthenticationFilter.class);
 
+	private TicketValidationCache ticketCache;
+
+	private TicketComponent ticketComponent;
+
+	private AuthenticationFailureThrottle failureThrottle;
+
+	/**
+	 * @param ticketCache cache of validated tickets, may be null to validate every request
+	 */
+	public void setTicketCache(TicketValidationCache ticketCache) {
+		this.ticketCache = ticketCache;
+	}
+
+	/**
+	 * @param failureThrottle remembers failed validations, may be null to validate every request
+	 */
+	public void setFailureThrottle(AuthenticationFailureThrottle failureThrottle) {
+		this.failureThrottle = failureThrottle;
+	}
+
+	/**
+	 * @param ticketComponent used to check cached tickets have not been invalidated since they were cached
+	 */
+	public void setTicketComponent(TicketComponent ticketComponent) {
+		this.ticketComponent = ticketComponent;
+	}
+
 	@Override
 	protected Log getLogger() {
 		return logger;
@@ -37,66 +68,88 @@ public class TicketPathAuthenticationFilter extends BaseAuthenticationFilter imp
 		}
 
 		//check Path as Ticket
-		Pattern p = Pattern.compile(".*/webdav2/(.*)/(.*)\\..*");
-		Matcher m = p.matcher(request.getRequestURI());
-		boolean isMatch = m.matches();
+		OnlineRequestPath path = OnlineRequestPath.resolve(request);
 
 		String ticket = null;
-		if ( isMatch ) {
-			//pattern match to request path
+		switch (path.getType()) {
+		case DOCUMENT:
+		case TICKET:
 			//extract the parts of ticket
-			ticket = m.group(1);
+			ticket = path.getTicket();
 			if ( logger.isDebugEnabled()) {
-				logger.debug("## ticket Str" + ticket);
+				logger.debug("ticket:" + ticket);
 			}
+			break;
+		case ROOT:
+			//Specifies Root .. no credential
+			return;
+		default:
+			//no credential .. through this
+			chain.doFilter(req, resp);
+			return;
+		}
+
+		//try validate ticket & set currentUser
+
+		if ( authenticateFromCache(ticket) ) {
+			chain.doFilter(req, resp);
+			return;
 		}
-		else {
-			Pattern p2 = Pattern.compile(".*/webdav2/([^/]+)/?");
-			Matcher m2 = p2.matcher(request.getRequestURI());
-			isMatch = m2.matches();
-			if ( isMatch ) {
-				ticket = m2.group(1);
 
+		//answer repeated failures from memory
+		String clientAddress = request.getRemoteAddr();
+		if ( failureThrottle != null ) {
+			if ( failureThrottle.isRejectedTicket(ticket) ) {
 				if ( logger.isDebugEnabled()) {
-					logger.debug("ticket:" + ticket);
+					logger.debug("rejected ticket:" + ticket);
 				}
+				sendUnauthorized((HttpServletResponse)resp);
+				return;
 			}
-			else {
-				//no credential .. through this
-				Pattern p3 = Pattern.compile(".*/webdav2/?$");
-				Matcher m3 = p3.matcher(request.getRequestURI());
-				isMatch = m3.matches();
-				if ( isMatch ) {
-					//Specifies Root
-					if ( logger.isDebugEnabled()) {
-						logger.debug("ticket:" + ticket);
-					}
-					return;
-				}
-				else {
-					chain.doFilter(req, resp);
-					return;
+			if ( failureThrottle.isThrottled(clientAddress, ticket) ) {
+				if ( logger.isDebugEnabled()) {
+					logger.debug("throttled client:" + clientAddress);
 				}
+				HttpServletResponse response = (HttpServletResponse)resp;
+				response.setHeader("Retry-After", String.valueOf(failureThrottle.getRetryAfterSeconds(clientAddress, ticket)));
+				response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.flushBuffer();
+				return;
 			}
 		}
 
-		//try validate ticket & set currentUser
-
 		try {
             authenticationService.validate(ticket);
             String userName = authenticationService.getCurrentUserName();
 			if ( logger.isDebugEnabled()) {
 				logger.debug("userName:" + userName);
 			}  
+			if ( ticketCache != null ) {
+				ticketCache.put(ticket, AuthenticationUtil.getFullAuthentication());
+			}
 		}
-		catch(Exception aex) { 
+		catch(AuthenticationException aex) { 
+			if ( ticketCache != null ) {
+				ticketCache.invalidateTicket(ticket);
+			}
+			if ( failureThrottle != null ) {
+				failureThrottle.recordFailure(ticket, clientAddress);
+			}
+
 			//return UNAUTHORIZED response to a client
-			HttpServletResponse response = (HttpServletResponse)resp;
+			sendUnauthorized((HttpServletResponse)resp);
+			return;
 
-			response.setHeader("WWW-Authenticate", "BASIC realm=\"Alfresco DAV Server\"");
-			response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+		}
+		catch(Exception ex) { 
+			//the ticket could not be checked, e.g. a database failure .. not remembered as a failure
+			if ( ticketCache != null ) {
+				ticketCache.invalidateTicket(ticket);
+			}
+			logger.warn("ticket validation failed:" + ex.getMessage());
 
-			response.flushBuffer();
+			//return UNAUTHORIZED response to a client
+			sendUnauthorized((HttpServletResponse)resp);
 			return;
 
 		}
@@ -104,4 +157,42 @@ public class TicketPathAuthenticationFilter extends BaseAuthenticationFilter imp
 		chain.doFilter(req, resp);
 	}
 
+	private void sendUnauthorized(HttpServletResponse response) throws IOException {
+		response.setHeader("WWW-Authenticate", "BASIC realm=\"Alfresco DAV Server\"");
+		response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+
+		response.flushBuffer();
+	}
+
+	/**
+	 * Set up the authentication context from a previously validated ticket.
+	 * 
+	 * @param ticket the path ticket
+	 * @return true if the ticket was found in the cache and is still valid
+	 */
+	private boolean authenticateFromCache(String ticket) {
+		if ( ticketCache == null || ticket == null ) {
+			return false;
+		}
+		Authentication authentication = ticketCache.get(ticket);
+		if ( authentication == null ) {
+			return false;
+		}
+		if ( ticketComponent != null ) {
+			try {
+				//in-memory ticket store lookup .. fails once the ticket is invalidated or the user logs out
+				ticketComponent.validateTicket(ticket);
+			}
+			catch(AuthenticationException aex) {
+				ticketCache.invalidateTicket(ticket);
+				return false;
+			}
+		}
+		AuthenticationUtil.setFullAuthentication(authentication);
+		if ( logger.isDebugEnabled()) {
+			logger.debug("userName(cached):" + authentication.getName());
+		}
+		return true;
+	}
+
 }
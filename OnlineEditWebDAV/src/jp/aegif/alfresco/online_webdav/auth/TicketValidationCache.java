@@ -0,0 +1,166 @@
+package jp.aegif.alfresco.online_webdav.auth;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.acegisecurity.Authentication;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Size-bounded ticket to authentication cache with a time to live.
+ * <p>
+ * One Office session reuses the same path ticket for every LOCK/GET/PROPFIND/PUT/UNLOCK call, so
+ * {@link TicketPathAuthenticationFilter} keeps the authentication built by the first successful
+ * validation and reuses it until the entry expires or the ticket is invalidated. A logout or ticket
+ * invalidation is seen on the next request, as the filter checks every cached ticket against the
+ * in-memory ticket store before reusing it.
+ */
+public class TicketValidationCache implements TicketValidationCacheMBean {
+
+	private static Log logger = LogFactory.getLog(TicketValidationCache.class);
+
+	private int maxEntries = 10000;
+	private long timeToLiveMillis = 60000L;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @param maxEntries the maximum number of cached tickets
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param timeToLiveSeconds how long a validated ticket is trusted without asking the repository again
+	 */
+	public void setTimeToLiveSeconds(long timeToLiveSeconds) {
+		this.timeToLiveMillis = timeToLiveSeconds * 1000L;
+	}
+
+	/**
+	 * Return the cached authentication for a ticket.
+	 *
+	 * @param ticket the path ticket
+	 * @return the authentication, or null if the ticket is not cached or the entry has expired
+	 */
+	public Authentication get(String ticket) {
+		Entry entry = entries.get(ticket);
+		if ( entry == null ) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		if ( entry.isExpired(System.currentTimeMillis()) ) {
+			if ( entries.remove(ticket, entry) ) {
+				evictionCount.incrementAndGet();
+			}
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.authentication;
+	}
+
+	/**
+	 * Cache the authentication established by a successful ticket validation.
+	 *
+	 * @param ticket the path ticket
+	 * @param authentication the authentication set up by the validation
+	 */
+	public void put(String ticket, Authentication authentication) {
+		if ( maxEntries <= 0 || timeToLiveMillis <= 0 ) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if ( entries.size() >= maxEntries ) {
+			evict(now);
+		}
+		entries.put(ticket, new Entry(authentication, now + timeToLiveMillis));
+	}
+
+	/**
+	 * Remove a ticket, e.g. because it has been invalidated.
+	 *
+	 * @param ticket the path ticket
+	 */
+	public void invalidateTicket(String ticket) {
+		if ( ticket != null && entries.remove(ticket) != null ) {
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Drop expired entries and, if the cache is still full, an arbitrary tenth of the remaining ones.
+	 */
+	private void evict(long now) {
+		int removed = 0;
+		for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+			if ( it.next().isExpired(now) ) {
+				it.remove();
+				removed++;
+			}
+		}
+		if ( entries.size() >= maxEntries ) {
+			int toRemove = Math.max(1, maxEntries / 10);
+			for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext() && toRemove > 0; toRemove-- ) {
+				it.next();
+				it.remove();
+				removed++;
+			}
+		}
+		evictionCount.addAndGet(removed);
+		if ( logger.isDebugEnabled() ) {
+			logger.debug("evicted " + removed + " tickets, size:" + entries.size());
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public int getSize() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getTimeToLiveSeconds() {
+		return timeToLiveMillis / 1000L;
+	}
+
+	private static final class Entry {
+		private final Authentication authentication;
+		private final long expiresAt;
+
+		private Entry(Authentication authentication, long expiresAt) {
+			this.authentication = authentication;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+}
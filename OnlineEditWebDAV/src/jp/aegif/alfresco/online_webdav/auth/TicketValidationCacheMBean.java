@@ -0,0 +1,21 @@
+package jp.aegif.alfresco.online_webdav.auth;
+
+/**
+ * Management interface of {@link TicketValidationCache}
+ */
+public interface TicketValidationCacheMBean {
+
+	public long getHitCount();
+
+	public long getMissCount();
+
+	public long getEvictionCount();
+
+	public int getSize();
+
+	public int getMaxEntries();
+
+	public long getTimeToLiveSeconds();
+
+	public void clear();
+}
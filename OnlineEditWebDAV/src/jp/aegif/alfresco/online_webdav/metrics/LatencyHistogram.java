@@ -0,0 +1,171 @@
+package jp.aegif.alfresco.online_webdav.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets.
+ * <p>
+ * Values are recorded in microseconds. Each power of two is split into 16 linear sub-buckets, so a
+ * reported percentile is within about 6% of the recorded value, in the manner of an HDR histogram.
+ * Recording is a handful of atomic increments and never blocks.
+ */
+public final class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Highest trackable value is 2^40 microseconds (about 12 days)
+	private static final int MAX_BITS = 40;
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_BITS - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong m_count = new AtomicLong();
+	private final AtomicLong m_sum = new AtomicLong();
+	private final AtomicLong m_max = new AtomicLong();
+
+	/**
+	 * Record a duration.
+	 * 
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void recordNanos(long nanos)
+	{
+		record(nanos / 1000L);
+	}
+
+	/**
+	 * Record a value.
+	 * 
+	 * @param micros the value in microseconds
+	 */
+	public void record(long micros)
+	{
+		if (micros < 0)
+		{
+			micros = 0;
+		}
+		m_counts.incrementAndGet(indexOf(micros));
+		m_count.incrementAndGet();
+		m_sum.addAndGet(micros);
+
+		long max = m_max.get();
+		while (micros > max && !m_max.compareAndSet(max, micros))
+		{
+			max = m_max.get();
+		}
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount()
+	{
+		return m_count.get();
+	}
+
+	/**
+	 * @return the sum of the recorded values, in microseconds
+	 */
+	public long getSum()
+	{
+		return m_sum.get();
+	}
+
+	/**
+	 * @return the largest recorded value, in microseconds
+	 */
+	public long getMax()
+	{
+		return m_max.get();
+	}
+
+	/**
+	 * @return the mean of the recorded values, in microseconds
+	 */
+	public double getMean()
+	{
+		long count = m_count.get();
+		return count == 0 ? 0.0 : (double) m_sum.get() / count;
+	}
+
+	/**
+	 * Return the value at a percentile.
+	 * 
+	 * @param percentile between 0 and 100, e.g. 99.9
+	 * @return the upper bound of the bucket holding the percentile, in microseconds
+	 */
+	public long getPercentile(double percentile)
+	{
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = m_counts.get(i);
+			total += counts[i];
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * total);
+		if (rank < 1)
+		{
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return Math.min(upperBoundOf(i), m_max.get());
+			}
+		}
+		return m_max.get();
+	}
+
+	/**
+	 * Clear all recorded values. Values recorded concurrently with the reset may be partially lost.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			m_counts.set(i, 0);
+		}
+		m_count.set(0);
+		m_sum.set(0);
+		m_max.set(0);
+	}
+
+	static int indexOf(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		if (msb >= MAX_BITS)
+		{
+			return BUCKETS - 1;
+		}
+		// The top SUB_BUCKET_BITS + 1 bits select the bucket
+		int magnitude = msb - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> magnitude) - SUB_BUCKETS;
+		return SUB_BUCKETS + magnitude * SUB_BUCKETS + sub;
+	}
+
+	static long upperBoundOf(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+		int magnitude = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long lower = ((long) (SUB_BUCKETS + sub)) << magnitude;
+		return lower + (1L << magnitude) - 1;
+	}
+}
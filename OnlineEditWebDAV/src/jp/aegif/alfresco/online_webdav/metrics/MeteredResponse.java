@@ -0,0 +1,148 @@
+package jp.aegif.alfresco.online_webdav.metrics;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper remembering the status code sent to the client and counting the body size
+ */
+public class MeteredResponse extends HttpServletResponseWrapper
+{
+	private int m_status = SC_OK;
+	private long m_bytesWritten;
+
+	private ServletOutputStream m_outputStream;
+	private PrintWriter m_writer;
+
+	public MeteredResponse(HttpServletResponse response)
+	{
+		super(response);
+	}
+
+	/**
+	 * @return the status code set on the response, 200 if none was set
+	 */
+	public int getStatus()
+	{
+		return m_status;
+	}
+
+	/**
+	 * @return the size of the body written so far, characters written through the writer count as one byte each
+	 */
+	public long getBytesWritten()
+	{
+		return m_bytesWritten;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException
+	{
+		if (m_outputStream == null)
+		{
+			final ServletOutputStream out = super.getOutputStream();
+			m_outputStream = new ServletOutputStream()
+			{
+				@Override
+				public void write(int b) throws IOException
+				{
+					out.write(b);
+					m_bytesWritten++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException
+				{
+					out.write(b, off, len);
+					m_bytesWritten += len;
+				}
+
+				@Override
+				public void flush() throws IOException
+				{
+					out.flush();
+				}
+
+				@Override
+				public void close() throws IOException
+				{
+					out.close();
+				}
+			};
+		}
+		return m_outputStream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException
+	{
+		if (m_writer == null)
+		{
+			m_writer = new PrintWriter(new FilterWriter(super.getWriter())
+			{
+				@Override
+				public void write(int c) throws IOException
+				{
+					out.write(c);
+					m_bytesWritten++;
+				}
+
+				@Override
+				public void write(char[] cbuf, int off, int len) throws IOException
+				{
+					out.write(cbuf, off, len);
+					m_bytesWritten += len;
+				}
+
+				@Override
+				public void write(String str, int off, int len) throws IOException
+				{
+					out.write(str, off, len);
+					m_bytesWritten += len;
+				}
+			});
+		}
+		return m_writer;
+	}
+
+	@Override
+	public void setStatus(int sc)
+	{
+		m_status = sc;
+		super.setStatus(sc);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void setStatus(int sc, String sm)
+	{
+		m_status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException
+	{
+		m_status = sc;
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException
+	{
+		m_status = sc;
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException
+	{
+		m_status = SC_MOVED_TEMPORARILY;
+		super.sendRedirect(location);
+	}
+}
@@ -0,0 +1,32 @@
+package jp.aegif.alfresco.online_webdav.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Plain-text scrape endpoint for {@link OnlineWebDAVMetrics}
+ */
+public class MetricsWebScript extends AbstractWebScript
+{
+	private OnlineWebDAVMetrics metrics;
+
+	public void setMetrics(OnlineWebDAVMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException
+	{
+		res.setContentType("text/plain; version=0.0.4");
+		res.setContentEncoding("UTF-8");
+		res.setHeader("Cache-Control", "no-cache");
+
+		Writer writer = res.getWriter();
+		metrics.writeTo(writer);
+		writer.flush();
+	}
+}
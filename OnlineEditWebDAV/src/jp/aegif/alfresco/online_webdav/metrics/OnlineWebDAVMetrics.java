@@ -0,0 +1,361 @@
+package jp.aegif.alfresco.online_webdav.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request metrics of the online edit WebDAV servlet.
+ * <p>
+ * Keeps a {@link LatencyHistogram} per HTTP method and status class, a histogram per method and
+ * {@link RequestTimings.Phase}, transaction retry counters and in-flight request gauges per method.
+ * The metrics are exposed through JMX and as plain text by {@link MetricsWebScript}.
+ */
+public class OnlineWebDAVMetrics implements OnlineWebDAVMetricsMBean
+{
+	/** Method name used for requests with an unexpected HTTP method */
+	public static final String OTHER_METHOD = "OTHER";
+
+	private static final String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+	private static final double[] QUANTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+	// Bounds the number of distinct method names a client can create
+	private static final int MAX_METHODS = 32;
+
+	private static final RequestTimings.Phase[] PHASES = RequestTimings.Phase.values();
+
+	private final ConcurrentMap<String, MethodMetrics> m_methods = new ConcurrentHashMap<String, MethodMetrics>();
+	private final AtomicInteger m_inFlight = new AtomicInteger();
+	private final AtomicLong m_requestCount = new AtomicLong();
+	private final AtomicLong m_slowRequestCount = new AtomicLong();
+	private final AtomicLong m_unsupportedMethodCount = new AtomicLong();
+
+	private long m_slowRequestThresholdNanos = 5000L * 1000000L;
+
+	/**
+	 * @param millis requests taking longer than this are reported as slow, 0 or less disables the report
+	 */
+	public void setSlowRequestThresholdMillis(long millis)
+	{
+		m_slowRequestThresholdNanos = millis * 1000000L;
+	}
+
+	public long getSlowRequestThresholdMillis()
+	{
+		return m_slowRequestThresholdNanos / 1000000L;
+	}
+
+	/**
+	 * Record the start of a request.
+	 * 
+	 * @param method the HTTP method
+	 */
+	public void requestStarted(String method)
+	{
+		m_inFlight.incrementAndGet();
+		getMethodMetrics(method).inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Record the lookup of the handler for a request.
+	 * 
+	 * @param method the HTTP method
+	 * @param supported true if a handler exists for the method
+	 */
+	public void methodDispatched(String method, boolean supported)
+	{
+		if (supported)
+		{
+			getMethodMetrics(method).dispatched.incrementAndGet();
+		}
+		else
+		{
+			m_unsupportedMethodCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record the end of a request started with {@link #requestStarted(String)}.
+	 * 
+	 * @param method the HTTP method
+	 * @param status the response status code
+	 * @param nanos the time taken
+	 * @param timings the phase timings of the request, may be null if no WebDAV method was executed
+	 * @return true if the request is slower than the slow request threshold
+	 */
+	public boolean requestCompleted(String method, int status, long nanos, RequestTimings timings)
+	{
+		MethodMetrics metrics = getMethodMetrics(method);
+		metrics.inFlight.decrementAndGet();
+		metrics.latency[statusClassIndex(status)].recordNanos(nanos);
+		if (timings != null)
+		{
+			for (RequestTimings.Phase phase : PHASES)
+			{
+				long phaseNanos = timings.getNanos(phase);
+				if (phaseNanos > 0)
+				{
+					metrics.phases[phase.ordinal()].recordNanos(phaseNanos);
+				}
+			}
+			int retries = timings.getTransactionRetries();
+			if (retries > 0)
+			{
+				metrics.retries.addAndGet(retries);
+				metrics.retriedRequests.incrementAndGet();
+			}
+		}
+		m_inFlight.decrementAndGet();
+		m_requestCount.incrementAndGet();
+
+		if (m_slowRequestThresholdNanos > 0 && nanos >= m_slowRequestThresholdNanos)
+		{
+			m_slowRequestCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	public int getInFlightRequests()
+	{
+		return m_inFlight.get();
+	}
+
+	public long getRequestCount()
+	{
+		return m_requestCount.get();
+	}
+
+	public long getSlowRequestCount()
+	{
+		return m_slowRequestCount.get();
+	}
+
+	public long getUnsupportedMethodCount()
+	{
+		return m_unsupportedMethodCount.get();
+	}
+
+	public double getLatencyPercentileMillis(String method, String statusClass, double percentile)
+	{
+		MethodMetrics metrics = m_methods.get(method);
+		if (metrics == null)
+		{
+			return 0.0;
+		}
+		for (int i = 0; i < STATUS_CLASSES.length; i++)
+		{
+			if (STATUS_CLASSES[i].equalsIgnoreCase(statusClass))
+			{
+				return metrics.latency[i].getPercentile(percentile) / 1000.0;
+			}
+		}
+		return 0.0;
+	}
+
+	public void reset()
+	{
+		for (MethodMetrics metrics : m_methods.values())
+		{
+			for (LatencyHistogram histogram : metrics.latency)
+			{
+				histogram.reset();
+			}
+			for (LatencyHistogram histogram : metrics.phases)
+			{
+				histogram.reset();
+			}
+			metrics.retries.set(0);
+			metrics.retriedRequests.set(0);
+			metrics.dispatched.set(0);
+		}
+		m_requestCount.set(0);
+		m_slowRequestCount.set(0);
+		m_unsupportedMethodCount.set(0);
+	}
+
+	public String getReport()
+	{
+		StringWriter writer = new StringWriter(4096);
+		try
+		{
+			writeTo(writer);
+		}
+		catch (IOException e)
+		{
+			// Not thrown by StringWriter
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * Write all metrics in plain-text exposition format.
+	 * 
+	 * @param out Writer
+	 * @throws IOException
+	 */
+	public void writeTo(Writer out) throws IOException
+	{
+		out.write("# TYPE online_webdav_requests_in_flight gauge\n");
+		writeValue(out, "online_webdav_requests_in_flight", null, m_inFlight.get());
+
+		Map<String, MethodMetrics> methods = new TreeMap<String, MethodMetrics>(m_methods);
+		for (Map.Entry<String, MethodMetrics> entry : methods.entrySet())
+		{
+			writeValue(out, "online_webdav_requests_in_flight", "method=\"" + entry.getKey() + "\"",
+					entry.getValue().inFlight.get());
+		}
+
+		out.write("# TYPE online_webdav_request_duration_seconds summary\n");
+		for (Map.Entry<String, MethodMetrics> entry : methods.entrySet())
+		{
+			LatencyHistogram[] latency = entry.getValue().latency;
+			for (int i = 0; i < STATUS_CLASSES.length; i++)
+			{
+				if (latency[i].getCount() > 0)
+				{
+					writeHistogram(out, "online_webdav_request_duration_seconds",
+							"method=\"" + entry.getKey() + "\",status=\"" + STATUS_CLASSES[i] + "\"", latency[i]);
+				}
+			}
+		}
+
+		out.write("# TYPE online_webdav_phase_duration_seconds summary\n");
+		for (Map.Entry<String, MethodMetrics> entry : methods.entrySet())
+		{
+			LatencyHistogram[] phases = entry.getValue().phases;
+			for (RequestTimings.Phase phase : PHASES)
+			{
+				if (phases[phase.ordinal()].getCount() > 0)
+				{
+					writeHistogram(out, "online_webdav_phase_duration_seconds",
+							"method=\"" + entry.getKey() + "\",phase=\"" + phase.getLabel() + "\"", phases[phase.ordinal()]);
+				}
+			}
+		}
+
+		out.write("# TYPE online_webdav_transaction_retries_total counter\n");
+		for (Map.Entry<String, MethodMetrics> entry : methods.entrySet())
+		{
+			writeValue(out, "online_webdav_transaction_retries_total", "method=\"" + entry.getKey() + "\"",
+					entry.getValue().retries.get());
+			writeValue(out, "online_webdav_retried_requests_total", "method=\"" + entry.getKey() + "\"",
+					entry.getValue().retriedRequests.get());
+		}
+
+		out.write("# TYPE online_webdav_dispatched_requests_total counter\n");
+		for (Map.Entry<String, MethodMetrics> entry : methods.entrySet())
+		{
+			writeValue(out, "online_webdav_dispatched_requests_total", "method=\"" + entry.getKey() + "\"",
+					entry.getValue().dispatched.get());
+		}
+		out.write("# TYPE online_webdav_unsupported_method_requests_total counter\n");
+		writeValue(out, "online_webdav_unsupported_method_requests_total", null, m_unsupportedMethodCount.get());
+
+		out.write("# TYPE online_webdav_slow_requests_total counter\n");
+		writeValue(out, "online_webdav_slow_requests_total", null, m_slowRequestCount.get());
+	}
+
+	/**
+	 * Write a histogram as a summary with quantiles, count, sum and max.
+	 */
+	protected static void writeHistogram(Writer out, String name, String labels, LatencyHistogram histogram)
+			throws IOException
+	{
+		for (double quantile : QUANTILES)
+		{
+			writeValue(out, name, labels + ",quantile=\"" + (quantile / 100.0) + "\"",
+					histogram.getPercentile(quantile) / 1000000.0);
+		}
+		writeValue(out, name + "_count", labels, histogram.getCount());
+		writeValue(out, name + "_sum", labels, histogram.getSum() / 1000000.0);
+		writeValue(out, name + "_max", labels, histogram.getMax() / 1000000.0);
+	}
+
+	protected static void writeValue(Writer out, String name, String labels, double value) throws IOException
+	{
+		out.write(name);
+		if (labels != null)
+		{
+			out.write('{');
+			out.write(labels);
+			out.write('}');
+		}
+		out.write(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+		{
+			out.write(Long.toString((long) value));
+		}
+		else
+		{
+			out.write(Double.toString(value));
+		}
+		out.write('\n');
+	}
+
+	private MethodMetrics getMethodMetrics(String method)
+	{
+		if (method == null)
+		{
+			method = OTHER_METHOD;
+		}
+		MethodMetrics metrics = m_methods.get(method);
+		if (metrics == null)
+		{
+			if (m_methods.size() >= MAX_METHODS)
+			{
+				method = OTHER_METHOD;
+				metrics = m_methods.get(OTHER_METHOD);
+				if (metrics != null)
+				{
+					return metrics;
+				}
+			}
+			MethodMetrics created = new MethodMetrics();
+			metrics = m_methods.putIfAbsent(method, created);
+			if (metrics == null)
+			{
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	private static int statusClassIndex(int status)
+	{
+		int index = status / 100 - 1;
+		if (index < 0 || index >= STATUS_CLASSES.length)
+		{
+			return STATUS_CLASSES.length - 1;
+		}
+		return index;
+	}
+
+	private static final class MethodMetrics
+	{
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final LatencyHistogram[] latency = new LatencyHistogram[STATUS_CLASSES.length];
+		private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+		private final AtomicLong retries = new AtomicLong();
+		private final AtomicLong retriedRequests = new AtomicLong();
+		private final AtomicLong dispatched = new AtomicLong();
+
+		private MethodMetrics()
+		{
+			for (int i = 0; i < latency.length; i++)
+			{
+				latency[i] = new LatencyHistogram();
+			}
+			for (int i = 0; i < phases.length; i++)
+			{
+				phases[i] = new LatencyHistogram();
+			}
+		}
+	}
+}
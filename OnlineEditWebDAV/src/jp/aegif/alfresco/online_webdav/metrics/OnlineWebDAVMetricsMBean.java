@@ -0,0 +1,50 @@
+package jp.aegif.alfresco.online_webdav.metrics;
+
+/**
+ * Management interface of {@link OnlineWebDAVMetrics}
+ */
+public interface OnlineWebDAVMetricsMBean
+{
+	/**
+	 * @return the number of requests currently being processed
+	 */
+	public int getInFlightRequests();
+
+	/**
+	 * @return the number of completed requests
+	 */
+	public long getRequestCount();
+
+	/**
+	 * @return the number of requests slower than the slow request threshold
+	 */
+	public long getSlowRequestCount();
+
+	/**
+	 * @return the slow request threshold in milliseconds
+	 */
+	public long getSlowRequestThresholdMillis();
+
+	/**
+	 * @return the number of requests with an HTTP method the servlet does not handle
+	 */
+	public long getUnsupportedMethodCount();
+
+	/**
+	 * @return all metrics in plain-text exposition format
+	 */
+	public String getReport();
+
+	/**
+	 * @param method the HTTP method, e.g. PUT
+	 * @param statusClass the status class, e.g. 2xx
+	 * @param percentile between 0 and 100, e.g. 99.9
+	 * @return the latency at the percentile in milliseconds, or 0 if nothing has been recorded
+	 */
+	public double getLatencyPercentileMillis(String method, String statusClass, double percentile);
+
+	/**
+	 * Clear all recorded latencies and counters, except the in-flight gauges
+	 */
+	public void reset();
+}
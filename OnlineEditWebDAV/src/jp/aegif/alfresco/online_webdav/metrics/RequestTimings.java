@@ -0,0 +1,91 @@
+package jp.aegif.alfresco.online_webdav.metrics;
+
+/**
+ * Time spent in each phase of a single WebDAV request.
+ * <p>
+ * Created per request by the servlet and filled in by {@link jp.aegif.alfresco.online_webdav.WebDAVMethod}.
+ * Phases may overlap, e.g. {@link Phase#FLUSH_XML} and {@link Phase#SPOOL_BODY} usually run inside
+ * {@link Phase#TRANSACTION}. Instances are confined to the request thread.
+ */
+public final class RequestTimings
+{
+	/**
+	 * Measured phases of WebDAVMethod.execute
+	 */
+	public enum Phase
+	{
+		PARSE_HEADERS("parseHeaders"),
+		PARSE_BODY("parseBody"),
+		SPOOL_BODY("spoolBody"),
+		TRANSACTION("transaction"),
+		GENERATE_RESPONSE("generateResponse"),
+		FLUSH_XML("flushXml");
+
+		private final String m_label;
+
+		private Phase(String label)
+		{
+			m_label = label;
+		}
+
+		/**
+		 * @return the name used in logs and metrics
+		 */
+		public String getLabel()
+		{
+			return m_label;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final long[] m_nanos = new long[PHASES.length];
+	private int m_attempts;
+
+	/**
+	 * Add time spent in a phase.
+	 * 
+	 * @param phase the phase
+	 * @param nanos the time spent
+	 */
+	public void add(Phase phase, long nanos)
+	{
+		m_nanos[phase.ordinal()] += nanos;
+	}
+
+	/**
+	 * @param phase the phase
+	 * @return the time spent in the phase, in nanoseconds
+	 */
+	public long getNanos(Phase phase)
+	{
+		return m_nanos[phase.ordinal()];
+	}
+
+	/**
+	 * Record one attempt of the retrying transaction.
+	 */
+	public void transactionAttempt()
+	{
+		m_attempts++;
+	}
+
+	/**
+	 * @return the number of times the transaction was retried
+	 */
+	public int getTransactionRetries()
+	{
+		return m_attempts > 1 ? m_attempts - 1 : 0;
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(128);
+		for (Phase phase : PHASES)
+		{
+			sb.append(phase.getLabel()).append('=').append(m_nanos[phase.ordinal()] / 1000000L).append("ms ");
+		}
+		sb.append("retries=").append(getTransactionRetries());
+		return sb.toString();
+	}
+}
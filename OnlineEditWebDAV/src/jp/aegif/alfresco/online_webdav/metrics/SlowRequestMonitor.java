@@ -0,0 +1,293 @@
+package jp.aegif.alfresco.online_webdav.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Samples the stack of requests that are still running after <tt>sampleAfterMillis</tt>.
+ * <p>
+ * Requests register on start and deregister on completion, which is all a fast request pays. A
+ * single background thread wakes up every <tt>sampleIntervalMillis</tt>, and for each request that
+ * has been running long enough takes a stack trace of the handling thread, up to
+ * <tt>maxSamples</tt> per request. The samples are written to the slow request log by the servlet.
+ */
+public class SlowRequestMonitor implements SlowRequestMonitorMBean
+{
+	private static Log logger = LogFactory.getLog(SlowRequestMonitor.class);
+
+	private boolean m_enabled = true;
+	private long m_sampleAfterNanos = 5000L * 1000000L;
+	private long m_sampleIntervalMillis = 1000L;
+	private int m_maxSamples = 5;
+	private int m_maxFrames = 40;
+
+	private final Set<ActiveRequest> m_active = Collections.newSetFromMap(new ConcurrentHashMap<ActiveRequest, Boolean>());
+	private final AtomicLong m_sampleCount = new AtomicLong();
+
+	private ScheduledExecutorService m_sampler;
+
+	/**
+	 * Stack trace of a running request
+	 */
+	public static final class StackSample
+	{
+		private final long m_elapsedMillis;
+		private final StackTraceElement[] m_stack;
+
+		StackSample(long elapsedMillis, StackTraceElement[] stack)
+		{
+			m_elapsedMillis = elapsedMillis;
+			m_stack = stack;
+		}
+
+		/**
+		 * @return how long the request had been running when the sample was taken
+		 */
+		public long getElapsedMillis()
+		{
+			return m_elapsedMillis;
+		}
+
+		public StackTraceElement[] getStack()
+		{
+			return m_stack;
+		}
+	}
+
+	/**
+	 * A request registered with the monitor
+	 */
+	public static final class ActiveRequest
+	{
+		private final Thread m_thread;
+		private final long m_startNanos;
+		private List<StackSample> m_samples;
+
+		ActiveRequest(Thread thread, long startNanos)
+		{
+			m_thread = thread;
+			m_startNanos = startNanos;
+		}
+
+		private synchronized int getSampleCount()
+		{
+			return m_samples == null ? 0 : m_samples.size();
+		}
+
+		private synchronized void addSample(StackSample sample)
+		{
+			if (m_samples == null)
+			{
+				m_samples = new ArrayList<StackSample>(4);
+			}
+			m_samples.add(sample);
+		}
+
+		/**
+		 * @return the stack samples taken while the request was running, empty for fast requests
+		 */
+		public synchronized List<StackSample> getSamples()
+		{
+			return m_samples == null ? Collections.<StackSample>emptyList() : new ArrayList<StackSample>(m_samples);
+		}
+	}
+
+	/**
+	 * @param enabled false to disable stack sampling
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		m_enabled = enabled;
+	}
+
+	/**
+	 * @param millis requests running longer than this are sampled
+	 */
+	public void setSampleAfterMillis(long millis)
+	{
+		m_sampleAfterNanos = millis * 1000000L;
+	}
+
+	/**
+	 * @param millis the time between two samples of the same request
+	 */
+	public void setSampleIntervalMillis(long millis)
+	{
+		m_sampleIntervalMillis = millis;
+	}
+
+	/**
+	 * @param maxSamples the maximum number of samples kept per request
+	 */
+	public void setMaxSamples(int maxSamples)
+	{
+		m_maxSamples = maxSamples;
+	}
+
+	/**
+	 * @param maxFrames the maximum number of stack frames kept per sample
+	 */
+	public void setMaxFrames(int maxFrames)
+	{
+		m_maxFrames = maxFrames;
+	}
+
+	public void init()
+	{
+		if (!m_enabled)
+		{
+			return;
+		}
+		m_sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "OnlineWebDAV-slow-request-sampler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		m_sampler.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					sample();
+				}
+				catch (Throwable e)
+				{
+					logger.warn("Slow request sampling failed", e);
+				}
+			}
+		}, m_sampleIntervalMillis, m_sampleIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void destroy()
+	{
+		if (m_sampler != null)
+		{
+			m_sampler.shutdownNow();
+			m_sampler = null;
+		}
+		m_active.clear();
+	}
+
+	/**
+	 * Register a request handled by the current thread.
+	 * 
+	 * @param startNanos System.nanoTime() at the start of the request
+	 * @return the handle to pass to {@link #requestFinished(ActiveRequest)}, or null if sampling is disabled
+	 */
+	public ActiveRequest requestStarted(long startNanos)
+	{
+		if (m_sampler == null)
+		{
+			return null;
+		}
+		ActiveRequest request = new ActiveRequest(Thread.currentThread(), startNanos);
+		m_active.add(request);
+		return request;
+	}
+
+	/**
+	 * Deregister a request.
+	 * 
+	 * @param request the handle returned by {@link #requestStarted(long)}, may be null
+	 * @return the stack samples taken while the request was running
+	 */
+	public List<StackSample> requestFinished(ActiveRequest request)
+	{
+		if (request == null)
+		{
+			return Collections.emptyList();
+		}
+		m_active.remove(request);
+		return request.getSamples();
+	}
+
+	private void sample()
+	{
+		long now = System.nanoTime();
+		for (ActiveRequest request : m_active)
+		{
+			long elapsed = now - request.m_startNanos;
+			if (elapsed < m_sampleAfterNanos || request.getSampleCount() >= m_maxSamples)
+			{
+				continue;
+			}
+			StackTraceElement[] stack = request.m_thread.getStackTrace();
+			if (stack.length > m_maxFrames)
+			{
+				StackTraceElement[] truncated = new StackTraceElement[m_maxFrames];
+				System.arraycopy(stack, 0, truncated, 0, m_maxFrames);
+				stack = truncated;
+			}
+			// The request may have finished while the stack was taken, the sample is then dropped
+			if (m_active.contains(request))
+			{
+				request.addSample(new StackSample(elapsed / 1000000L, stack));
+				m_sampleCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Append the samples to a log message, one frame per line.
+	 * 
+	 * @param sb the message
+	 * @param samples the samples of a request
+	 */
+	public static void appendSamples(StringBuilder sb, List<StackSample> samples)
+	{
+		for (StackSample sample : samples)
+		{
+			sb.append("\n  stack at ").append(sample.getElapsedMillis()).append("ms:");
+			for (StackTraceElement frame : sample.getStack())
+			{
+				sb.append("\n\tat ").append(frame);
+			}
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return m_enabled;
+	}
+
+	public long getSampleAfterMillis()
+	{
+		return m_sampleAfterNanos / 1000000L;
+	}
+
+	public long getSampleIntervalMillis()
+	{
+		return m_sampleIntervalMillis;
+	}
+
+	public int getMaxSamples()
+	{
+		return m_maxSamples;
+	}
+
+	public int getActiveRequestCount()
+	{
+		return m_active.size();
+	}
+
+	public long getSampleCount()
+	{
+		return m_sampleCount.get();
+	}
+}
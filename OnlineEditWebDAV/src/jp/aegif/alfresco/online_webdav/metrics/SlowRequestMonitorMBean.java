@@ -0,0 +1,25 @@
+package jp.aegif.alfresco.online_webdav.metrics;
+
+/**
+ * Management interface of {@link SlowRequestMonitor}
+ */
+public interface SlowRequestMonitorMBean
+{
+	public boolean isEnabled();
+
+	public long getSampleAfterMillis();
+
+	public long getSampleIntervalMillis();
+
+	public int getMaxSamples();
+
+	/**
+	 * @return the number of requests currently running
+	 */
+	public int getActiveRequestCount();
+
+	/**
+	 * @return the number of stack samples taken
+	 */
+	public long getSampleCount();
+}